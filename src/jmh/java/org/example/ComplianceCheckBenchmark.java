@@ -0,0 +1,97 @@
+package org.example;
+
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.*;
+import org.topbraid.jenax.util.JenaUtil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.example.SPARQLUtils.extractPoliciesFromModel;
+import static org.example.SPARQLUtils.extractRequestsFromModel;
+
+/**
+ * JMH benchmarks of the compliance checks of one IMDB test request against IMDBPolicy.shapes.core.ttl (Core),
+ * IMDBPolicy.shapes.sparql.ttl (SPARQL) and the native engine, the policies are compiled once per trial.
+ * The requests have 2 (Request_2_test), 8 (Request_4_test) and 500 (Request_1_test) subrequests.
+ * The steps on generated policies of several sizes are in GeneratedPolicyBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ComplianceCheckBenchmark {
+
+    private static final SHACLComplianceResult.Mode MODE = SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS;
+
+    @Param({"save-ex:Request_2_test", "save-ex:Request_4_test", "save-ex:Request_1_test"})
+    public String requestName;
+
+    private SAVENormalizer normalizer;
+    private SAVERule request;
+    private SAVERuleNormalized requestNormalized;
+    private SHACLInferenceRunner runnerCore;
+    private SHACLInferenceRunner runnerSPARQL;
+    private SAVEComplianceEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Model unionModel = ModelUtils.loadFullSAVEModel();
+        Model saveModel = ModelUtils.loadSAVEModel();
+        unionModel.add(ModelUtils.loadModelFromResourceFile("save.imdb.policy.ttl"));
+        Model shapesCore = ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.core.ttl");
+        Model shapesSPARQL = ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.sparql.ttl");
+        List<SAVERule> requests = extractRequestsFromModel(JenaUtil.createMemoryModel().add(unionModel)
+                .add(shapesCore).add(ModelUtils.loadModelFromResourceFile("testIMDBRequests.ttl")));
+        request = requests.stream().filter(rule -> rule.getName().equals(requestName)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No test request " + requestName));
+        normalizer = new SAVENormalizer(unionModel);
+        requestNormalized = normalizer.normalizeSAVERule(request, false, true);
+        Model coreUnionModel = JenaUtil.createMemoryModel().add(unionModel).add(shapesCore);
+        coreUnionModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        Model sparqlUnionModel = JenaUtil.createMemoryModel().add(unionModel).add(shapesSPARQL);
+        sparqlUnionModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        runnerCore = new SHACLInferenceRunner(coreUnionModel, saveModel, shapesCore);
+        runnerSPARQL = new SHACLInferenceRunner(sparqlUnionModel, saveModel, shapesSPARQL);
+        engine = new SAVEComplianceEngine(extractPoliciesFromModel(unionModel).get(0), unionModel, saveModel);
+    }
+
+    @Benchmark
+    public SAVERuleNormalized normalize() {
+        return normalizer.normalizeSAVERule(request, false, true);
+    }
+
+    @Benchmark
+    public SHACLInferenceRunner addChildSAVERuleToModel() {
+        SHACLInferenceRunner runner = new SHACLInferenceRunner(runnerCore);
+        int i = 0;
+        for (List<String> combination : requestNormalized.getCombinations()) {
+            runner.addChildSAVERuleToModel(requestNormalized.getAttributes(), combination, requestNormalized.getName(),
+                    requestNormalized.getType(), i++, requestNormalized.getName(), null);
+        }
+        return runner;
+    }
+
+    @Benchmark
+    public String addSPARQLSAVERuleToModel() {
+        return new SHACLInferenceRunner(runnerSPARQL).addSPARQLSAVERuleToModel(requestNormalized);
+    }
+
+    @Benchmark
+    public SHACLComplianceResult core() throws Exception {
+        // a fresh inference model over the same compiled policy, as for every request of the app
+        return new SHACLInferenceRunner(runnerCore).checkNormalizedSAVERuleCore(requestNormalized, false, MODE, false);
+    }
+
+    @Benchmark
+    public SHACLComplianceResult sparql() {
+        return new SHACLInferenceRunner(runnerSPARQL).checkNormalizedSAVERuleSPARQL(requestNormalized, MODE, false);
+    }
+
+    @Benchmark
+    public SHACLComplianceResult nativeEngine() {
+        return engine.checkNormalizedSAVERule(requestNormalized, MODE, false);
+    }
+}
@@ -0,0 +1,265 @@
+package org.example;
+
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the steps of compliance checking on random policies and requests from SAVERuleGenerator:
+ * translation, normalization, request materialization (Core and SPARQL), checking and editing a translated policy.
+ * Every seed and policy size gives one policy, the requests of a trial have more than subrequests / 10 and at most
+ * subrequests subrequests. The times of the request benchmarks are per request
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class GeneratedPolicyBenchmark {
+
+    private static final SHACLComplianceResult.Mode MODE = SHACLComplianceResult.Mode.RANDOM_SIMPLE_POLICIES;
+
+    /**
+     * the # of generated requests per trial
+     */
+    private static final int N_REQUESTS = 5;
+
+    @Param({"1", "5"})
+    public int seed;
+
+    @Param({"10", "100"})
+    public int policySize;
+
+    @Param({"1", "10", "100"})
+    public int subrequests;
+
+    private Model unionModel;
+    private SAVEPolicy policy;
+    private SAVENormalizer normalizer;
+    private List<SAVERule> requests;
+    private List<SAVERuleNormalized> requestsNormalized;
+    private SHACLInferenceRunner runnerCore;
+    private SHACLInferenceRunner runnerSPARQL;
+    private SHACLInferenceRunner runnerCombined;
+    private SHACLInferenceRunner filteredCore;
+    private SHACLInferenceRunner filteredSPARQL;
+    private SAVEComplianceEngine engine;
+
+    /**
+     * the rule of the policy updated by the edit benchmarks
+     */
+    private SAVERule update;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        unionModel = ModelUtils.loadFullSAVEModel();
+        Model saveModel = ModelUtils.loadSAVEModel();
+        SAVEVocabulary vocab = new SAVEVocabulary(unionModel);
+        Set<String> attributes = new HashSet<>(Arrays.asList(vocab.dataPropertyPrefixedName,
+                vocab.actionPropertyPrefixedName, vocab.purposePropertyPrefixedName));
+        SAVERuleGenerator generator = new SAVERuleGenerator(unionModel, seed);
+        String policyName = "save-ex:bench_policy_" + seed + "_" + policySize;
+        policy = generator.generateRandomPolicy(policyName, policySize, false, attributes);
+        SAVERule permission = policy.getPermissions().get(0);
+        update = generator.generateRandomRule(permission.getName(), permission.getType(), false, attributes);
+
+        SHACLPolicyTranslator translatorCore = new SHACLPolicyTranslator(unionModel, policy);
+        translatorCore.translateSAVEPolicyToSHACL();
+        SHACLPolicyTranslator translatorSPARQL = new SHACLPolicyTranslator(unionModel, policy);
+        translatorSPARQL.translateSAVEPolicyToSHACLSPARQL();
+        SHACLPolicyTranslator translatorCombined = new SHACLPolicyTranslator(unionModel, policy);
+        translatorCombined.translateSAVEPolicyToSHACLSPARQLCombined();
+        runnerCore = new SHACLInferenceRunner(unionModel, saveModel, translatorCore.getInfModel());
+        runnerSPARQL = new SHACLInferenceRunner(unionModel, saveModel, translatorSPARQL.getInfModel());
+        runnerCombined = new SHACLInferenceRunner(unionModel, saveModel, translatorCombined.getInfModel());
+        filteredCore = new SHACLInferenceRunner(runnerCore);
+        filteredCore.indexRules(policy);
+        filteredSPARQL = new SHACLInferenceRunner(runnerSPARQL);
+        filteredSPARQL.indexRules(policy);
+        engine = new SAVEComplianceEngine(policy, unionModel, saveModel);
+
+        // atomic and random requests, only the ones with the subrequest count of the trial are kept
+        normalizer = new SAVENormalizer(unionModel);
+        requests = new ArrayList<>();
+        requestsNormalized = new ArrayList<>();
+        String requestType = String.format("save-ex:Request%s", policyName.split(":")[1]);
+        for (int attempt = 0; attempt < 1000 * N_REQUESTS && requests.size() < N_REQUESTS; attempt++) {
+            SAVERule request = generator.generateRandomRule("save-ex:bench_" + seed + "_" + policySize + "_" + attempt,
+                    requestType, attempt % 2 == 0, null);
+            SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, false);
+            long count = requestNormalized.getCombinations().count();
+            if (count > subrequests / 10 && count <= subrequests) {
+                requests.add(request);
+                requestsNormalized.add(requestNormalized);
+            }
+        }
+        if (requests.size() < N_REQUESTS) {
+            throw new IllegalStateException(String.format("Only %d requests with at most %d subrequests were generated",
+                    requests.size(), subrequests));
+        }
+    }
+
+    /**
+     * A translated policy for every edit, the edits change it
+     */
+    @State(Scope.Thread)
+    public static class TranslatedPolicy {
+        SHACLPolicyTranslator translatorCore;
+        SHACLPolicyTranslator translatorSPARQL;
+        SHACLPolicyTranslator translatorCombined;
+
+        @Setup(Level.Invocation)
+        public void translate(GeneratedPolicyBenchmark benchmark) {
+            translatorCore = new SHACLPolicyTranslator(benchmark.unionModel, copyPolicy(benchmark.policy));
+            translatorCore.translateSAVEPolicyToSHACL();
+            translatorSPARQL = new SHACLPolicyTranslator(benchmark.unionModel, copyPolicy(benchmark.policy));
+            translatorSPARQL.translateSAVEPolicyToSHACLSPARQL();
+            translatorCombined = new SHACLPolicyTranslator(benchmark.unionModel, copyPolicy(benchmark.policy));
+            translatorCombined.translateSAVEPolicyToSHACLSPARQLCombined();
+        }
+
+        private static SAVEPolicy copyPolicy(SAVEPolicy policy) {
+            SAVEPolicy copy = new SAVEPolicy(policy.getName());
+            for (List<SAVERule> rules : Arrays.asList(policy.getPermissions(), policy.getProhibitions(),
+                    policy.getObligations(), policy.getDispensations())) {
+                for (SAVERule rule : rules) {
+                    copy.addRule(new SAVERule(rule));
+                }
+            }
+            return copy;
+        }
+    }
+
+    @Benchmark
+    public Model translateSAVEPolicyToSHACL() {
+        SHACLPolicyTranslator translator = new SHACLPolicyTranslator(unionModel, policy);
+        translator.translateSAVEPolicyToSHACL();
+        return translator.getInfModel();
+    }
+
+    @Benchmark
+    public Model translateSAVEPolicyToSHACLSPARQL() {
+        SHACLPolicyTranslator translator = new SHACLPolicyTranslator(unionModel, policy);
+        translator.translateSAVEPolicyToSHACLSPARQL();
+        return translator.getInfModel();
+    }
+
+    @Benchmark
+    public Model translateSAVEPolicyToSHACLSPARQLCombined() {
+        SHACLPolicyTranslator translator = new SHACLPolicyTranslator(unionModel, policy);
+        translator.translateSAVEPolicyToSHACLSPARQLCombined();
+        return translator.getInfModel();
+    }
+
+    @Benchmark
+    public Model updateRuleCore(TranslatedPolicy translated) {
+        translated.translatorCore.updateRule(update);
+        return translated.translatorCore.getInfModel();
+    }
+
+    @Benchmark
+    public Model updateRuleSPARQL(TranslatedPolicy translated) {
+        translated.translatorSPARQL.updateRule(update);
+        return translated.translatorSPARQL.getInfModel();
+    }
+
+    @Benchmark
+    public Model updateRuleSPARQLCombined(TranslatedPolicy translated) {
+        translated.translatorCombined.updateRule(update);
+        return translated.translatorCombined.getInfModel();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SAVERuleNormalized> normalize() {
+        List<SAVERuleNormalized> normalized = new ArrayList<>();
+        for (SAVERule request : requests) {
+            normalized.add(normalizer.normalizeSAVERule(request, false, false));
+        }
+        return normalized;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public SHACLInferenceRunner addChildSAVERuleToModel() {
+        SHACLInferenceRunner runner = new SHACLInferenceRunner(runnerCore);
+        for (SAVERuleNormalized request : requestsNormalized) {
+            int i = 0;
+            for (List<String> combination : request.getCombinations()) {
+                runner.addChildSAVERuleToModel(request.getAttributes(), combination, request.getName(),
+                        request.getType(), i++, request.getName(), null);
+            }
+        }
+        return runner;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public SHACLInferenceRunner addSPARQLSAVERuleToModel() {
+        SHACLInferenceRunner runner = new SHACLInferenceRunner(runnerSPARQL);
+        for (SAVERuleNormalized request : requestsNormalized) {
+            runner.addSPARQLSAVERuleToModel(request);
+        }
+        return runner;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> core() throws Exception {
+        return checkCore(runnerCore);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> filteredCore() throws Exception {
+        return checkCore(filteredCore);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> sparql() {
+        return checkSPARQL(runnerSPARQL);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> filteredSPARQL() {
+        return checkSPARQL(filteredSPARQL);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> combinedSPARQL() {
+        return checkSPARQL(runnerCombined);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_REQUESTS)
+    public List<SHACLComplianceResult> nativeEngine() {
+        List<SHACLComplianceResult> results = new ArrayList<>();
+        for (SAVERuleNormalized request : requestsNormalized) {
+            results.add(engine.checkNormalizedSAVERule(request, MODE, false));
+        }
+        return results;
+    }
+
+    private List<SHACLComplianceResult> checkCore(SHACLInferenceRunner runner) throws Exception {
+        List<SHACLComplianceResult> results = new ArrayList<>();
+        for (SAVERuleNormalized request : requestsNormalized) {
+            // a fresh inference model over the same compiled policy, as for every request of the app
+            results.add(new SHACLInferenceRunner(runner).checkNormalizedSAVERuleCore(request, false, MODE, false));
+        }
+        return results;
+    }
+
+    private List<SHACLComplianceResult> checkSPARQL(SHACLInferenceRunner runner) {
+        List<SHACLComplianceResult> results = new ArrayList<>();
+        for (SAVERuleNormalized request : requestsNormalized) {
+            results.add(new SHACLInferenceRunner(runner).checkNormalizedSAVERuleSPARQL(request, MODE, false));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,248 @@
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.cli.*;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDFS;
+import org.example.*;
+import org.example.save.app.MainController;
+import org.example.save.app.PolicyModel;
+import org.example.save.app.RequestModel;
+import org.springframework.ui.ExtendedModelMap;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class SAVEBenchmarks {
+
+    /**
+     * Main file for the microbenchmarks of the class hierarchy (leaves), the wide attribute lists and the web app.
+     * The steps of compliance checking on generated policies are JMH benchmarks (GeneratedPolicyBenchmark, in src/jmh)
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+
+        Option benchmarkOption = new Option("b", "benchmark", true, "benchmark: leaves (default), " +
+                "lists (requests and rules with wide attribute lists) or app (load test of the web app controller)");
+        benchmarkOption.setRequired(false);
+        options.addOption(benchmarkOption);
+
+        Option warmupOption = new Option("w", "warmup", true, "the # of warm-up iterations, default = 5");
+        warmupOption.setRequired(false);
+        options.addOption(warmupOption);
+
+        Option iterationsOption = new Option("i", "iterations", true, "the # of measured iterations, default = 10");
+        iterationsOption.setRequired(false);
+        options.addOption(iterationsOption);
+
+        Option threadsOption = new Option("t", "threads", true, "the list of # of concurrent clients for the app benchmark, default = 1,2,4");
+        threadsOption.setRequired(false);
+        options.addOption(threadsOption);
+
+        Option widthsOption = new Option("d", "widths", true, "the list of # of data values per request or rule for the " +
+                "lists benchmark, default = 10,50,100");
+        widthsOption.setRequired(false);
+        options.addOption(widthsOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("SAVEBenchmarks", options);
+            System.exit(1);
+            return;
+        }
+        String benchmark = cmd.getOptionValue("benchmark", "leaves");
+        int warmup = Integer.parseInt(cmd.getOptionValue("warmup", "5"));
+        int iterations = Integer.parseInt(cmd.getOptionValue("iterations", "10"));
+        List<Integer> threads = parseList(cmd.getOptionValue("threads", "1,2,4"));
+        List<Integer> widths = parseList(cmd.getOptionValue("widths", "10,50,100"));
+        System.out.println("Benchmark: " + benchmark);
+        System.out.println("Warm-up iterations: " + warmup + ", measured iterations: " + iterations);
+
+        if (benchmark.equals("leaves")) {
+            benchmarkLeaves(warmup, iterations);
+        } else if (benchmark.equals("lists")) {
+            benchmarkLists(widths, warmup, iterations);
+        } else if (benchmark.equals("app")) {
+            benchmarkApp(threads, warmup, iterations);
+        } else {
+            System.out.println("Unknown benchmark " + benchmark);
+            formatter.printHelp("SAVEBenchmarks", options);
+        }
+    }
+
+    /**
+     * Compares JenaUtils.findLeaves (DFS over the model) with the precomputed SAVEClassHierarchy,
+     * for every class that has subclasses
+     * @param warmup the # of warm-up iterations
+     * @param iterations the # of measured iterations
+     */
+    private static void benchmarkLeaves(int warmup, int iterations) {
+        Model unionModel = ModelUtils.loadFullSAVEModel();
+        List<String> classes = new ArrayList<>();
+        for (RDFNode node : unionModel.listObjectsOfProperty(RDFS.subClassOf).toSet()) {
+            if (node.isURIResource() && unionModel.getNsURIPrefix(node.asResource().getNameSpace()) != null) {
+                classes.add(SPARQLUtils.getPrefixedLabel((Resource) node, unionModel));
+            }
+        }
+        System.out.println("Classes with subclasses: " + classes.size());
+
+        long start = System.nanoTime();
+        SAVEClassHierarchy hierarchy = new SAVEClassHierarchy(unionModel);
+        System.out.println("Index of " + hierarchy.size() + " classes built in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+        for (String cls : classes) {
+            if (!JenaUtils.findLeaves(cls, unionModel).equals(hierarchy.findLeaves(cls))) {
+                System.out.println("WARNING: different leaves for " + cls);
+            }
+        }
+        double dfs = measure(warmup, iterations, () -> {
+            for (String cls : classes) {
+                JenaUtils.findLeaves(cls, unionModel);
+            }
+        });
+        double index = measure(warmup, iterations, () -> {
+            for (String cls : classes) {
+                hierarchy.findLeaves(cls);
+            }
+        });
+        System.out.println("DFS: " + dfs / classes.size() + " us per class");
+        System.out.println("Index: " + index / classes.size() + " us per class");
+    }
+
+    /**
+     * Benchmarks the RDF lists of wide attributes: a request with n data values materialized for the SPARQL procedure
+     * (save:dataList) and a policy rule with n data classes translated for the Core procedure (sh:or).
+     * The values are the leaves of the data root that have an individual in SAVE (so normalization keeps them)
+     * @param widths the # of data values to test, at most the # of such leaves
+     * @param warmup the # of warm-up iterations
+     * @param iterations the # of measured iterations
+     */
+    private static void benchmarkLists(List<Integer> widths, int warmup, int iterations) {
+        Model unionModel = ModelUtils.loadFullSAVEModel();
+        Model saveModel = ModelUtils.loadSAVEModel();
+        SAVEVocabulary vocab = new SAVEVocabulary(unionModel);
+        SAVENormalizer normalizer = new SAVENormalizer(unionModel);
+        Map<String, String> data = new LinkedHashMap<>();
+        for (String leaf : new SAVEClassHierarchy(unionModel).findLeaves(vocab.rootMap.get(vocab.dataPropertyPrefixedName))) {
+            try {
+                data.put(SPARQLUtils.getPrefixedLabel(JenaUtils.getAnyIndividualFromConcept(leaf, vocab.savePrefix, unionModel),
+                        unionModel), leaf);
+            } catch (NoSuchElementException e) {
+                // no individual to use in the request
+            }
+        }
+        System.out.println("Data leaves with an individual: " + data.size());
+        SAVEPolicy emptyPolicy = new SAVEPolicy("save-ex:test_policy_lists");
+        SHACLPolicyTranslator translatorSPARQL = new SHACLPolicyTranslator(unionModel, emptyPolicy);
+        translatorSPARQL.translateSAVEPolicyToSHACLSPARQL();
+        SHACLInferenceRunner runnerSPARQL = new SHACLInferenceRunner(unionModel, saveModel, translatorSPARQL.getInfModel());
+        System.out.println("width	us per request (SPARQL materialization)	us per rule (Core translation)");
+        for (int width : widths) {
+            if (width > data.size()) {
+                System.out.println("WARNING: only " + data.size() + " data values, skipping width " + width);
+                continue;
+            }
+            SAVERule request = new SAVERule("save-ex:bench_lists_" + width, "save-ex:Requesttest_policy_lists");
+            SAVERule permission = new SAVERule("save-ex:bench_lists_rule_" + width, "orcp:Permission");
+            for (Map.Entry<String, String> value : new ArrayList<>(data.entrySet()).subList(0, width)) {
+                request.addData(value.getKey(), value.getValue());
+                permission.addData(value.getKey(), value.getValue());
+            }
+            permission.addAction(vocab.rootMap.get(vocab.actionPropertyPrefixedName),
+                    vocab.rootMap.get(vocab.actionPropertyPrefixedName));
+            SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, false);
+            SAVEPolicy policy = new SAVEPolicy("save-ex:test_policy_lists");
+            policy.addRule(permission);
+            double materialize = measure(warmup, iterations,
+                    () -> new SHACLInferenceRunner(runnerSPARQL).addSPARQLSAVERuleToModel(requestNormalized));
+            double translate = measure(warmup, iterations,
+                    () -> new SHACLPolicyTranslator(unionModel, policy).translateSAVEPolicyToSHACL());
+            System.out.println(width + "\t" + materialize + "\t" + translate);
+        }
+    }
+
+    /**
+     * Load test of the web app: the controller is called by several clients at once (as by the threads of the server),
+     * every client checks all the saved requests against the SPARQL policies
+     * @param threads the # of concurrent clients to test
+     * @param warmup the # of warm-up checks (with one client)
+     * @param iterations the # of checks per client
+     */
+    private static void benchmarkApp(List<Integer> threads, int warmup, int iterations) {
+        // the stage timers are recorded as in the app
+        MainController controller = new MainController(new SimpleMeterRegistry());
+        ExtendedModelMap page = new ExtendedModelMap();
+        controller.showCompliance(page);
+        List<String> requests = new ArrayList<>();
+        for (RequestModel request : (Collection<RequestModel>) page.get("requests")) {
+            requests.add(request.getRequestId());
+        }
+        List<String> policies = new ArrayList<>();
+        for (PolicyModel policy : (Collection<PolicyModel>) page.get("policies")) {
+            if (policy.getPolicyId().contains("sparql")) {
+                policies.add(policy.getPolicyId());
+            }
+        }
+        Runnable check = () -> controller.checkComplianceOnSavedRequests(requests, policies, new ExtendedModelMap());
+        for (int i = 0; i < warmup; i++) {
+            check.run();
+        }
+        for (int nThreads : threads) {
+            ExecutorService clients = Executors.newFixedThreadPool(nThreads);
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < nThreads * iterations; i++) {
+                futures.add(clients.submit(check));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (Exception e) {
+                System.out.println("WARNING: a check failed with " + nThreads + " clients");
+                e.printStackTrace();
+            } finally {
+                clients.shutdown();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Clients: " + nThreads + "\tchecks per second: " + futures.size() / seconds +
+                    "\trequests per second: " + futures.size() * requests.size() * policies.size() / seconds);
+        }
+        controller.shutdown();
+    }
+
+    private static List<Integer> parseList(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Integer.parseInt(value.trim()));
+        }
+        return values;
+    }
+
+    /**
+     * Runs the code warmup times, then measures it
+     * @param warmup the # of warm-up iterations
+     * @param iterations the # of measured iterations
+     * @param code the code to measure
+     * @return the average time of one iteration, in microseconds
+     */
+    private static double measure(int warmup, int iterations, Runnable code) {
+        for (int i = 0; i < warmup; i++) {
+            code.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            code.run();
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+}
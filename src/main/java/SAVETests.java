@@ -12,6 +12,9 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -24,6 +27,11 @@ import static org.example.SPARQLUtils.*;
 
 public class SAVETests {
 
+    /**
+     * format of the written policies and triples: ttl, nt, ttl.gz or nt.gz
+     */
+    private static String outputFormat = "ttl";
+
     /**
      * Main file for evaluation of SHACL rules based on SAVE model
      */
@@ -58,6 +66,26 @@ public class SAVETests {
         ultimateOption.setRequired(false);
         options.addOption(ultimateOption);
 
+        Option threadsOption = new Option("t", "threads", true, "the # of requests to check in parallel (only for inf mode), default = 1");
+        threadsOption.setRequired(false);
+        options.addOption(threadsOption);
+
+        Option batchSizeOption = new Option("b", "batchSize", true, "the # of subrequests per parallel batch (only for inf mode with Core), default = 0 (sequential batches)");
+        batchSizeOption.setRequired(false);
+        options.addOption(batchSizeOption);
+
+        Option windowOption = new Option("w", "window", true, "the # of parallel batches checked at once in streaming mode (only for inf mode with Core and batchSize > 0), default = 0 (no streaming)");
+        windowOption.setRequired(false);
+        options.addOption(windowOption);
+
+        Option nativeOption = new Option("n", "native", true, "whether to check the requests with the native engine instead of SHACL (true/false, only for inf mode), default = false");
+        nativeOption.setRequired(false);
+        options.addOption(nativeOption);
+
+        Option combinedOption = new Option("c", "combined", true, "whether to translate the policy into one combined SPARQL rule instead of loading the shapes with one rule per SAVE rule (true/false, only for inf mode with sparql), default = false");
+        combinedOption.setRequired(false);
+        options.addOption(combinedOption);
+
         Option evalModeOption = new Option("e", "evalMode", true, "eval mode: imdb_simple (default), imdb_atomic, random_atomic");
         evalModeOption.setRequired(false);
         options.addOption(evalModeOption);
@@ -74,6 +102,14 @@ public class SAVETests {
         nRulesOption.setRequired(false);
         options.addOption(nRulesOption);
 
+        Option profileOption = new Option("P", "profile", true, "whether to profile the SHACL rules and write the ranked rules per policy (true/false, only for inf mode without native), default = false");
+        profileOption.setRequired(false);
+        options.addOption(profileOption);
+
+        Option formatOption = new Option("f", "format", true, "the format of the written policies and triples (streamed): ttl, nt, ttl.gz or nt.gz, default = ttl");
+        formatOption.setRequired(false);
+        options.addOption(formatOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -84,7 +120,14 @@ public class SAVETests {
             String outputFolder = cmd.getOptionValue("outputFolder");
             boolean sparql = Boolean.parseBoolean(cmd.getOptionValue("sparql", "false"));
             boolean ultimate = Boolean.parseBoolean(cmd.getOptionValue("ultimate", "false"));
+            int nThreads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+            int batchSize = Integer.parseInt(cmd.getOptionValue("batchSize", "0"));
+            int window = Integer.parseInt(cmd.getOptionValue("window", "0"));
+            boolean nativeEngine = Boolean.parseBoolean(cmd.getOptionValue("native", "false"));
+            boolean combined = Boolean.parseBoolean(cmd.getOptionValue("combined", "false"));
+            boolean profile = Boolean.parseBoolean(cmd.getOptionValue("profile", "false"));
             String evalMode = cmd.getOptionValue("evalMode", "imdb_simple");
+            outputFormat = cmd.getOptionValue("format", "ttl");
             List<Integer> seeds = Arrays.stream(cmd.getOptionValue("seeds", "1,5,10,100,200,500,1000").split(","))
                     .map(Integer::parseInt).collect(Collectors.toList());
             List<Integer> policySizes = Arrays.stream(cmd.getOptionValue("policySizes", "1,10,100,1000,10000").split(","))
@@ -94,6 +137,7 @@ public class SAVETests {
 
             System.out.println("Mode: " + mode);
             System.out.println("Output folder: " + outputFolder);
+            System.out.println("Output format: " + outputFormat);
 
             if (mode.equals("inf")){
                 //test the compliance checking
@@ -103,7 +147,14 @@ public class SAVETests {
                     System.out.println("Cannot process ultimate request with SHACL-Core procedure, please choose sparql version by setting -p True");
                     System.exit(1);
                 }
-                testComplianceChecking(sparql, outputFolder, ultimate, headless);
+                System.out.println("Threads: " + nThreads);
+                System.out.println("Batch size: " + batchSize);
+                System.out.println("Window: " + window);
+                System.out.println("Native: " + nativeEngine);
+                System.out.println("Combined: " + combined);
+                System.out.println("Profile: " + profile);
+                testComplianceChecking(sparql, outputFolder, ultimate, headless, nThreads, batchSize, window, nativeEngine,
+                        combined, profile);
             } else if(mode.equals("eval")){
                 System.out.println("Seeds to use: " + seeds);
                 if(evalMode.equals("imdb_simple")){
@@ -165,8 +216,8 @@ public class SAVETests {
                 shaclPolicyTranslatorSPARQL.translateSAVEPolicyToSHACLSPARQL();
                 Model shapeModelSPARQL = shaclPolicyTranslatorSPARQL.getInfModel();
                 Model shapeModelCore = shaclPolicyTranslatorCore.getInfModel();
-                shaclPolicyTranslatorCore.writeSHACLPolicyToFile(outputFolder+"generated_policies/", false);
-                shaclPolicyTranslatorSPARQL.writeSHACLPolicyToFile(outputFolder+"generated_policies/", true);
+                shaclPolicyTranslatorCore.writeSHACLPolicyToFile(outputFolder+"generated_policies/", false, outputFormat);
+                shaclPolicyTranslatorSPARQL.writeSHACLPolicyToFile(outputFolder+"generated_policies/", true, outputFormat);
                 SAVENormalizer normalizer = new SAVENormalizer(unionModel);
                 SHACLInferenceRunner runnerCore = new SHACLInferenceRunner(unionModel, saveModel, shapeModelCore);
                 SHACLInferenceRunner runnerSPARQL = new SHACLInferenceRunner(unionModel, saveModel, shapeModelSPARQL);
@@ -186,13 +237,13 @@ public class SAVETests {
                 SHACLComplianceResult resultBatchCore = runnerCore.checkNormalizedSAVERulesBatchAtomicCore(saveRules, SHACLComplianceResult.Mode.RANDOM_SIMPLE_POLICIES, false);
                 resultBatchCore.setPolicy(policyName);
                 resultBatchCore.addnRulesPerPolicy(policySize);
-                resultBatchCore.writeToFile(outputFolder + "logs/", "test_random_atomic_Core_" + policySize + "_" + seed);
+                resultBatchCore.writeToFile(outputFolder + "logs/", "test_random_atomic_Core_" + policySize + "_" + seed, outputFormat);
                 resultsTotalCore.add(resultBatchCore);
 
                 SHACLComplianceResult resultBatchSPARQL = runnerSPARQL.checkNormalizedSAVERulesBatchAtomicSPARQL(saveRules, SHACLComplianceResult.Mode.RANDOM_SIMPLE_POLICIES, false);
                 resultBatchSPARQL.setPolicy(policyName);
                 resultBatchSPARQL.addnRulesPerPolicy(policySize);
-                resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_random_atomic_SPARQL_" + policySize + "_" + seed);
+                resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_random_atomic_SPARQL_" + policySize + "_" + seed, outputFormat);
                 resultsTotalSPARQL.add(resultBatchSPARQL);
             }
         }
@@ -200,11 +251,11 @@ public class SAVETests {
         SHACLComplianceResult resultCore = createTotalResultFromList(resultsTotalCore,
                 nRules.get(0)*policySizes.size()*seeds.size(), unionModel, SHACLComplianceResult.Mode.RANDOM_SIMPLE_POLICIES);
         resultCore.setPolicy("Random");
-        resultCore.writeToFile(outputFolder, "test_random_atomic_Core_total_stats");
+        resultCore.writeToFile(outputFolder, "test_random_atomic_Core_total_stats", outputFormat);
         SHACLComplianceResult resultSPARQL = createTotalResultFromList(resultsTotalSPARQL,
                 nRules.get(0)*policySizes.size()*seeds.size(), unionModel, SHACLComplianceResult.Mode.RANDOM_SIMPLE_POLICIES);
         resultSPARQL.setPolicy("Random");
-        resultSPARQL.writeToFile(outputFolder, "test_random_atomic_SPARQL_total_stats");
+        resultSPARQL.writeToFile(outputFolder, "test_random_atomic_SPARQL_total_stats", outputFormat);
         //chart
         if(!headless) {
             EvaluationChart chart = new EvaluationChart("Batch of 100 atomic requests against random policies",
@@ -254,12 +305,12 @@ public class SAVETests {
                 // just need to prove it empirically
                 SHACLComplianceResult resultBatchCore = runnerCore.checkNormalizedSAVERulesBatchAtomicCore(saveRules, SHACLComplianceResult.Mode.IMDB_ATOMIC_REQUESTS, false);
                 resultBatchCore.setPolicy("IMDB");
-                resultBatchCore.writeToFile(outputFolder + "logs/", "test_imdb_atomic_Core_" + nRulesj + "_" + seed);
+                resultBatchCore.writeToFile(outputFolder + "logs/", "test_imdb_atomic_Core_" + nRulesj + "_" + seed, outputFormat);
                 resultsTotalCore.add(resultBatchCore);
 
                 SHACLComplianceResult resultBatchSPARQL = runnerSPARQL.checkNormalizedSAVERulesBatchAtomicSPARQL(saveRules, SHACLComplianceResult.Mode.IMDB_ATOMIC_REQUESTS, false);
                 resultBatchSPARQL.setPolicy("IMDB");
-                resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_imdb_atomic_SPARQL_" + nRulesj + "_" + seed);
+                resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_imdb_atomic_SPARQL_" + nRulesj + "_" + seed, outputFormat);
                 resultsTotalSPARQL.add(resultBatchSPARQL);
             }
         }
@@ -267,11 +318,11 @@ public class SAVETests {
         SHACLComplianceResult resultCore = createTotalResultFromList(resultsTotalCore,
                 nRules.stream().mapToInt(Integer::intValue).sum() *seeds.size(), unionModel, SHACLComplianceResult.Mode.IMDB_ATOMIC_REQUESTS);
         resultCore.setPolicy("IMDB");
-        resultCore.writeToFile(outputFolder, "test_imdb_atomic_Core_total_stats");
+        resultCore.writeToFile(outputFolder, "test_imdb_atomic_Core_total_stats", outputFormat);
         SHACLComplianceResult resultSPARQL = createTotalResultFromList(resultsTotalSPARQL,
                 nRules.stream().mapToInt(Integer::intValue).sum()*seeds.size(), unionModel, SHACLComplianceResult.Mode.IMDB_ATOMIC_REQUESTS);
         resultSPARQL.setPolicy("IMDB");
-        resultSPARQL.writeToFile(outputFolder, "test_imdb_atomic_SPARQL_total_stats");
+        resultSPARQL.writeToFile(outputFolder, "test_imdb_atomic_SPARQL_total_stats", outputFormat);
         //chart
         if(!headless) {
             EvaluationChart chart = new EvaluationChart("Batch of atomic requests",
@@ -331,21 +382,21 @@ public class SAVETests {
             }
             SHACLComplianceResult resultBatchCore = createTotalResultFromList(resultsCore, saveRules.size(), unionModel, SHACLComplianceResult.Mode.IMDB_SIMPLE_REQUESTS);
             resultBatchCore.setPolicy("IMDB");
-            resultBatchCore.writeToFile(outputFolder + "logs/", "test_imdb_simple_Core_" + nRulesj + "_" + seed);
+            resultBatchCore.writeToFile(outputFolder + "logs/", "test_imdb_simple_Core_" + nRulesj + "_" + seed, outputFormat);
             resultsTotalCore.add(resultBatchCore);
 
             SHACLComplianceResult resultBatchSPARQL = createTotalResultFromList(resultsSPARQL, saveRules.size(), unionModel, SHACLComplianceResult.Mode.IMDB_SIMPLE_REQUESTS);
             resultBatchSPARQL.setPolicy("IMDB");
-            resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_imdb_simple_SPARQL_" + nRulesj + "_" + seed);
+            resultBatchSPARQL.writeToFile(outputFolder + "logs/", "test_imdb_simple_SPARQL_" + nRulesj + "_" + seed, outputFormat);
             resultsTotalSPARQL.add(resultBatchSPARQL);
         }
         //consolidate results for all seeds
         SHACLComplianceResult resultCore = createTotalResultFromList(resultsTotalCore, nRules.get(0)*seeds.size(), unionModel, SHACLComplianceResult.Mode.IMDB_SIMPLE_REQUESTS);
         resultCore.setPolicy("IMDB");
-        resultCore.writeToFile(outputFolder, "test_imdb_simple_Core_total_stats");
+        resultCore.writeToFile(outputFolder, "test_imdb_simple_Core_total_stats", outputFormat);
         SHACLComplianceResult resultSPARQL = createTotalResultFromList(resultsTotalSPARQL, nRules.get(0)*seeds.size(), unionModel, SHACLComplianceResult.Mode.IMDB_SIMPLE_REQUESTS);
         resultSPARQL.setPolicy("IMDB");
-        resultSPARQL.writeToFile(outputFolder, "test_imdb_simple_SPARQL_total_stats");
+        resultSPARQL.writeToFile(outputFolder, "test_imdb_simple_SPARQL_total_stats", outputFormat);
         //chart
         if(!headless) {
 //            EvaluationChart chart = new EvaluationChart("Batch of simple requests",
@@ -372,18 +423,33 @@ public class SAVETests {
 
 
 
-    private static void testComplianceChecking(boolean SPARQL, String outputFolder, boolean ultimate, boolean headless) {
+    private static void testComplianceChecking(boolean SPARQL, String outputFolder, boolean ultimate, boolean headless,
+                                               int nThreads, int batchSize, int window, boolean nativeEngine,
+                                               boolean combined, boolean profile)
+            throws InterruptedException, ExecutionException {
         Instant start = Instant.now();
 
         Model unionModel = ModelUtils.loadFullSAVEModel();
         Model saveModel = ModelUtils.loadSAVEModel();
         Model policyModel = ModelUtils.loadModelFromResourceFile("save.imdb.policy.ttl");
         Model shapeModel;
-        if (SPARQL) {
-            shapeModel = ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.sparql.ttl");
+        String shapesName;
+        if (SPARQL && combined) {
+            Model policyUnionModel = JenaUtil.createMemoryModel().add(unionModel).add(policyModel);
+            policyUnionModel.setNsPrefixes(unionModel.getNsPrefixMap());
+            SHACLPolicyTranslator translator = new SHACLPolicyTranslator(policyUnionModel,
+                    extractPoliciesFromModel(policyUnionModel).get(0));
+            translator.translateSAVEPolicyToSHACLSPARQLCombined();
+            shapeModel = translator.getInfModel();
+            shapesName = "IMDBPolicy combined SPARQL";
+        } else if (SPARQL) {
+            shapesName = "IMDBPolicy.shapes.sparql.ttl";
+            shapeModel = ModelUtils.loadModelFromResourceFile(shapesName);
         } else {
-            shapeModel = ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.core.ttl");
+            shapesName = "IMDBPolicy.shapes.core.ttl";
+            shapeModel = ModelUtils.loadModelFromResourceFile(shapesName);
         }
+        SHACLRuleProfiler profiler = (profile && !nativeEngine) ? new SHACLRuleProfiler(shapesName) : null;
         Model requestsModel = ModelUtils.loadModelFromResourceFile(ultimate ? "testIMDBRequestUltimate.ttl" : "testIMDBRequests.ttl");
 //        requestsModel.add(shapeModel);
         unionModel.add(shapeModel).add(policyModel);//.add(requestsModel);
@@ -391,31 +457,83 @@ public class SAVETests {
         List<SAVERule> requests = extractRequestsFromModel(JenaUtil.createMemoryModel().add(unionModel).add(requestsModel));
         SAVENormalizer normalizer = new SAVENormalizer(unionModel);
         List<SHACLComplianceResult> results = new ArrayList<>();
-        for (SAVERule request : requests) {
-            SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, true);
-            SHACLInferenceRunner runner = new SHACLInferenceRunner(unionModel, saveModel, shapeModel);
-            SHACLComplianceResult result = null;
-            if (SPARQL) {
-                result = runner.checkNormalizedSAVERuleSPARQL(requestNormalized,
+        if (nativeEngine) {
+            SAVEComplianceEngine engine = new SAVEComplianceEngine(extractPoliciesFromModel(unionModel).get(0), unionModel, saveModel);
+            for (SAVERule request : requests) {
+                SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, true);
+                SHACLComplianceResult result = engine.checkNormalizedSAVERule(requestNormalized,
                         (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS, true);
-            } else {
-                try {
-                    result = runner.checkNormalizedSAVERuleCore(requestNormalized, false,
-                            (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS, true);
-                } catch (Exception e) {
-                    System.out.println("The Core method should not have stopped but it did!");
-                }
-            }
-            if(result != null) {
                 result.setPolicy("IMDB");
                 results.add(result);
-
             }
+        } else if (nThreads > 1) {
+            List<SAVERuleNormalized> requestsNormalized = new ArrayList<>();
+            for (SAVERule request : requests) {
+                requestsNormalized.add(normalizer.normalizeSAVERule(request, false, true));
+            }
+            SHACLInferenceRunner runner = new SHACLInferenceRunner(unionModel, saveModel, shapeModel);
+            runner.setRuleProfiler(profiler);
+            ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            try {
+                for (SHACLComplianceResult result : runner.checkNormalizedSAVERulesParallel(requestsNormalized, SPARQL, false,
+                        (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS,
+                        executor, true)) {
+                    result.setPolicy("IMDB");
+                    results.add(result);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            // the batches of the parallel Core checks, only used with a batch size
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                for (SAVERule request : requests) {
+                    SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, true);
+                    SHACLInferenceRunner runner = new SHACLInferenceRunner(unionModel, saveModel, shapeModel);
+                    runner.setRuleProfiler(profiler);
+                    SHACLComplianceResult result = null;
+                    if (SPARQL) {
+                        result = runner.checkNormalizedSAVERuleSPARQL(requestNormalized,
+                                (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS, true);
+                    } else {
+                        try {
+                            if (batchSize > 0 && window > 0) {
+                                result = runner.checkNormalizedSAVERuleCoreStreaming(requestNormalized, batchSize, window,
+                                        (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS,
+                                        executor, true);
+                            } else if (batchSize > 0) {
+                                result = runner.checkNormalizedSAVERuleCoreParallel(requestNormalized, batchSize,
+                                        (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS,
+                                        executor, true);
+                            } else {
+                                result = runner.checkNormalizedSAVERuleCore(requestNormalized, false,
+                                        (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS, true);
+                            }
+                        } catch (Exception e) {
+                            System.out.println("The Core method should not have stopped but it did!");
+                        }
+                    }
+                    if(result != null) {
+                        result.setPolicy("IMDB");
+                        results.add(result);
+
+                    }
 
+                }
+            } finally {
+                executor.shutdown();
+            }
         }
         SHACLComplianceResult resultTotal = createTotalResultFromList(results, requests.size(), unionModel,
                 (ultimate) ? SHACLComplianceResult.Mode.IMDB_ULTIMATE_REQUEST : SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS);
-        resultTotal.writeToFile(outputFolder, "inference" +(SPARQL?"_SPARQL":"_Core")+((ultimate?"_ultimate_request":"_test_requests")));
+        resultTotal.writeToFile(outputFolder, "inference" +(nativeEngine?"_native":SPARQL?"_SPARQL":"_Core")+((ultimate?"_ultimate_request":"_test_requests")), outputFormat);
+        if (profiler != null) {
+            System.out.println(profiler.getReport());
+            profiler.writeToFile(outputFolder, "inference" + (SPARQL ? "_SPARQL" : "_Core")
+                    + (ultimate ? "_ultimate_request" : "_test_requests") + "_rules_profile");
+            profiler.close();
+        }
         Instant finish = Instant.now();
         long timeElapsed = Duration.between(start, finish).toMillis();
         System.out.println("Time took to run the whole test: " + timeElapsed);
@@ -435,7 +553,7 @@ public class SAVETests {
                     SAVEVocabulary.SAVEURI + "conformsTo"), (String) null).toList();
             System.out.println(conflicts.size() + " conflicts were found");
             result.setPolicy("IMDB");
-            result.writeToFile(outputFolder, "test_imdb_conflicts_stats");
+            result.writeToFile(outputFolder, "test_imdb_conflicts_stats", outputFormat);
         }
 
     }
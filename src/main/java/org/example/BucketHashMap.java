@@ -1,13 +1,15 @@
 package org.example;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Class for generating binned versions of chart data
  */
 public class BucketHashMap {
-    private final Map<Integer,List<Double>> map = new HashMap<>();
+    /**
+     * the bins, sorted by key so a bin is found with floorKey
+     */
+    private final TreeMap<Integer,List<Double>> map = new TreeMap<>();
 
     public Map<Integer, List<Double>> getMap() {
         return map;
@@ -69,14 +71,9 @@ public class BucketHashMap {
      * @return bin key or -1 if not found
      */
     public Integer findKey(Integer originalkey){
-        List<Integer> keys = map.keySet().stream().collect(Collectors.toList());
-        Collections.sort(keys);
-        for (int i = 0; i < keys.size() - 1; i++){
-            if (originalkey >= keys.get(i) && originalkey < keys.get(i+1)){
-                return keys.get(i);
-            }
-        }
-        return -1;
+        // the last key only closes the last bin
+        Integer key = originalkey < map.lastKey() ? map.floorKey(originalkey) : null;
+        return key == null ? -1 : key;
     }
 
     public List<Double> get(Integer key) {
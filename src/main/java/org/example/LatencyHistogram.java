@@ -0,0 +1,170 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latency histogram in nanoseconds with the bucket layout of HdrHistogram: the values are counted in buckets
+ * of powers of 2, each split into the same number of linear sub-buckets, so every value is kept with
+ * 2 significant digits (below 1% of error) in a fixed array, whatever the number of values.
+ * Histograms with the same layout can be merged (e.g. the results of several seeds)
+ */
+public class LatencyHistogram {
+
+    /**
+     * percentiles reported by getSummary
+     */
+    public static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * 2^8 sub-buckets for 2 significant digits (2 * 10^2 rounded up to a power of 2)
+     */
+    private static final int SUB_BUCKET_COUNT_MAGNITUDE = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_COUNT_MAGNITUDE;
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = SUB_BUCKET_COUNT_MAGNITUDE - 1;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    /**
+     * the highest value kept (1 hour), bigger values are counted as this one
+     */
+    public static final long HIGHEST_TRACKABLE_VALUE = 3_600_000_000_000L;
+
+    private final long[] counts;
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public LatencyHistogram() {
+        int bucketCount = 1;
+        long smallestUntrackableValue = SUB_BUCKET_COUNT;
+        while (smallestUntrackableValue <= HIGHEST_TRACKABLE_VALUE) {
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        counts = new long[(bucketCount + 1) * SUB_BUCKET_HALF_COUNT];
+    }
+
+    /**
+     * @param nanos the latency in nanoseconds (negative values are counted as 0)
+     */
+    public void recordValue(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_VALUE);
+        counts[countsIndex(value)]++;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * @param millis the latency in milliseconds, as measured by the runners
+     */
+    public void recordMillis(double millis) {
+        recordValue(Math.round(millis * 1e6));
+    }
+
+    /**
+     * Adds all the values of the other histogram
+     * @param other the histogram to merge into this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the exact smallest value, 0 if empty
+     */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the exact largest value, 0 if empty
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the exact mean, 0 if empty
+     */
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile the percentile (0-100)
+     * @return the highest value equivalent (within the precision) to the value at the percentile, at most the max,
+     * 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            if (total >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(valueFromIndex(i)), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return count, min, p50, p90, p99, p99.9, max and mean (in ns)
+     */
+    public Map<String, Number> getSummary() {
+        Map<String, Number> summary = new LinkedHashMap<>();
+        summary.put("count", totalCount);
+        summary.put("min", getMin());
+        for (double percentile : PERCENTILES) {
+            summary.put("p" + String.valueOf(percentile).replace(".0", "").replace(".", ""),
+                    getValueAtPercentile(percentile));
+        }
+        summary.put("max", max);
+        summary.put("mean", Math.round(getMean()));
+        return summary;
+    }
+
+    private static int bucketIndex(long value) {
+        return 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+    }
+
+    private static int countsIndex(long value) {
+        int bucketIndex = bucketIndex(value);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    private static long valueFromIndex(int index) {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        return (long) subBucketIndex << bucketIndex;
+    }
+
+    private static long highestEquivalentValue(long value) {
+        int bucketIndex = bucketIndex(value);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        long lowest = (long) subBucketIndex << bucketIndex;
+        int rangeBucketIndex = subBucketIndex >= SUB_BUCKET_COUNT ? bucketIndex + 1 : bucketIndex;
+        return lowest + (1L << rangeBucketIndex) - 1;
+    }
+}
@@ -1,7 +1,19 @@
 package org.example;
 
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.Union;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFOps;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.graph.GraphReadOnly;
 import org.apache.jena.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.core.io.support.ResourcePatternResolver;
@@ -9,34 +21,76 @@ import org.topbraid.jenax.util.JenaUtil;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Helper class to deal with loading/saving models
  */
 public class ModelUtils {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ModelUtils.class);
+
     public static final String RESOURCE_FOLDER = "/";
     public static final String SAVE_ONTOLOGY_NAME = "save.ontology.ttl";
     public static final String SAVE_SHAPES_NAME = "save.shapes.ttl";
     public static final String DPV_NAME = "dpv.ttl";
     public static final String ORCP_NAME = "odrl_regulatory_profile_prefixed.ttl";
 
+    /**
+     * system property with the folder of the binary snapshots of the full model (default: ~/.cache/save),
+     * "none" to always parse the Turtle files. The folder and the snapshots must belong to the current user and
+     * must not be writable by the group or by others, otherwise the snapshots are not used
+     */
+    public static final String SNAPSHOT_FOLDER_PROPERTY = "save.snapshot.folder";
+
+    /**
+     * size of the output buffers of the streaming writer
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
     /**
      * Full model contains:
      *  - SAVE ontology
      *  - SAVE shapes (base request shape)
      *  - DPV ontology
      *  - ORCP ontology
-     * The policies and policy shapes come separately - need to be added separately with loadModelFromResourceFile method
+     * The policies and policy shapes come separately - need to be added separately with loadModelFromResourceFile method.
+     * The model (with the prefixes) is read from a binary snapshot (RDF Thrift) if there is one for the current
+     * files, otherwise it is parsed from Turtle and the snapshot is written for the next start
      * @return full model representing SAVE
      */
     public static Model loadFullSAVEModel(){
+        Path snapshot = getSnapshotPath();
+        if (snapshot != null && Files.isReadable(snapshot) && isPrivate(snapshot)) {
+            try {
+                return readSnapshot(snapshot);
+            } catch (Exception e) {
+                LOG.warn("Cannot read the snapshot {}, parsing the Turtle files: {}", snapshot, e.getMessage());
+            }
+        }
+        Model unionModel = parseFullSAVEModel();
+        if (snapshot != null) {
+            writeSnapshot(unionModel, snapshot);
+        }
+        return unionModel;
+    }
+
+    /**
+     * Parses the full model from the Turtle files
+     * @return full model representing SAVE
+     */
+    private static Model parseFullSAVEModel(){
         Model dataModel = loadSAVEModel();
 
         Model shapesModel = loadModelFromResourceFile(SAVE_SHAPES_NAME);
@@ -53,6 +107,143 @@ public class ModelUtils {
         return unionModel;
     }
 
+    /**
+     * The snapshot is named after the checksum of the files of the full model, so it is not used after they change
+     * @return the path of the snapshot, null if the snapshots are disabled or the files cannot be read
+     */
+    private static Path getSnapshotPath(){
+        String folder = System.getProperty(SNAPSHOT_FOLDER_PROPERTY,
+                Paths.get(System.getProperty("user.home"), ".cache", "save").toString());
+        if (folder.equals("none")) {
+            return null;
+        }
+        CRC32 checksum = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        for (String filename : Arrays.asList(SAVE_ONTOLOGY_NAME, SAVE_SHAPES_NAME, DPV_NAME, ORCP_NAME)) {
+            try (InputStream in = ModelUtils.class.getResourceAsStream(RESOURCE_FOLDER + filename)) {
+                if (in == null) {
+                    return null;
+                }
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    checksum.update(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        Path directory = Paths.get(folder);
+        try {
+            if (Files.notExists(directory)) {
+                if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectories(directory,
+                            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+            if (!isPrivate(directory)) {
+                LOG.warn("The snapshot folder {} is not private to the current user, parsing the Turtle files", directory);
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot use the snapshot folder {}: {}", directory, e.getMessage());
+            return null;
+        }
+        return directory.resolve(String.format("save.union.%08x.trdf", checksum.getValue()));
+    }
+
+    /**
+     * Checks that a snapshot (or its folder) can be trusted: not a symbolic link, owned by the current user
+     * and not writable by the group or by others
+     * @param path the snapshot or the snapshot folder
+     * @return true if only the current user can have written it
+     */
+    private static boolean isPrivate(Path path){
+        try {
+            if (Files.isSymbolicLink(path)) {
+                return false;
+            }
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user)) {
+                return false;
+            }
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+                return !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                        && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the snapshot through a memory-mapped buffer, the caller checks first that it is private
+     * @param snapshot the snapshot file
+     * @return the model with the prefixes
+     * @throws IOException if the file cannot be read
+     */
+    private static Model readSnapshot(Path snapshot) throws IOException {
+        Model model = JenaUtil.createMemoryModel();
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            RDFDataMgr.read(model, new ByteBufferInputStream(buffer), Lang.RDFTHRIFT);
+        }
+        return model;
+    }
+
+    /**
+     * Writes the snapshot (into a temporary file first, so a concurrent start never reads half of it),
+     * the temporary file is only readable and writable by the current user
+     * @param model the full model
+     * @param snapshot the snapshot file
+     */
+    private static void writeSnapshot(Model model, Path snapshot){
+        try {
+            Path tmp = Files.createTempFile(snapshot.getParent(), "save.union", ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                RDFDataMgr.write(out, model, RDFFormat.RDF_THRIFT);
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Cannot write the snapshot {}: {}", snapshot, e.getMessage());
+        }
+    }
+
+    /**
+     * Input stream over a (memory-mapped) buffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     /**
      * Loads just the SAVE model (no imported files)
      * @return SAVE model graph
@@ -73,6 +264,36 @@ public class ModelUtils {
         return model;
     }
 
+    /**
+     * Layers a small request-scoped model over a shared base model without copying the base.
+     * Reads see both graphs, adds go into the delta and deletes only remove the triples of the delta
+     * (a plain Jena Union deletes from both graphs). A triple of the base stays visible through the view even
+     * after it is removed, so the base model is never modified through the overlay
+     * @param delta the request-scoped model (subrequests, parent request, etc.)
+     * @param base the shared model (SAVE, DPV, ORCP, policy)
+     * @return the union view of both models
+     */
+    public static Model createOverlayModel(Model delta, Model base){
+        Model overlay = ModelFactory.createModelForGraph(new Union(delta.getGraph(), base.getGraph()) {
+            @Override
+            public void performDelete(Triple t) {
+                L.delete(t);
+            }
+        });
+        overlay.setNsPrefixes(delta.getNsPrefixMap());
+        return overlay;
+    }
+
+    /**
+     * Freezes a model shared by several threads (e.g. the requests of the web app): reads go to the model,
+     * every add or remove throws an exception. Changes are made in an overlay (createOverlayModel) instead
+     * @param model the model, it should not be changed directly after this either
+     * @return the read-only view of the model, with the same prefixes
+     */
+    public static Model createReadOnlyModel(Model model){
+        return ModelFactory.createModelForGraph(new GraphReadOnly(model.getGraph()));
+    }
+
     /**
      * Save the model into SAVE main file
      * @param model graph
@@ -89,13 +310,34 @@ public class ModelUtils {
      */
     public static void writeModelToResourceFile(Model model, String fileName) {
         try {
-            FileWriter out = new FileWriter( fileName);
-            model.write(out, "Turtle");
+            writeModelStreaming(model, fileName);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes the model triple by triple, without building the document in memory (so the memory stays flat
+     * for any size): N-Triples for ".nt" files, otherwise Turtle blocks (the triples grouped by subject,
+     * not pretty-printed, with the prefixes of the model), gzipped if the name ends with ".gz"
+     * @param model model graph
+     * @param fileName the file name, e.g. "policy.ttl", "results.nt.gz"
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeModelStreaming(Model model, String fileName) throws IOException {
+        boolean gzip = fileName.endsWith(".gz");
+        String name = gzip ? fileName.substring(0, fileName.length() - ".gz".length()) : fileName;
+        RDFFormat format = name.endsWith(".nt") ? RDFFormat.NTRIPLES : RDFFormat.TURTLE_BLOCKS;
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(fileName), WRITE_BUFFER_SIZE);
+        try (OutputStream out = gzip ? new GZIPOutputStream(file, WRITE_BUFFER_SIZE) : file) {
+            StreamRDF writer = StreamRDFWriter.getWriterStream(out, format);
+            writer.start();
+            // the prefixes of the model and the triples, without starting and finishing the stream again
+            StreamRDFOps.sendGraphToStream(model.getGraph(), writer);
+            writer.finish();
+        }
+    }
+
     /**
      * Replace the prefixed name with full URI
      * @param prefixedName the name
@@ -0,0 +1,233 @@
+package org.example;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.topbraid.jenax.util.JenaUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.example.ModelUtils.replacePrefixWithURI;
+
+/**
+ * Index of the rdfs:subClassOf hierarchy of a model, built once and used instead of JenaUtils.findLeaves.
+ * Every class gets an int id, the subclasses of each class are kept in one array (CSR - children of class i are
+ * children[childrenStart[i]] ... children[childrenStart[i + 1] - 1]), as are the superclasses, and the leaves of a class
+ * are cached after the first lookup. The index is not updated if the model changes later
+ */
+public class SAVEClassHierarchy {
+
+    private final Model model;
+
+    /**
+     * class node to its id
+     */
+    private final Map<Node, Integer> ids = new HashMap<>();
+
+    /**
+     * class id to its node
+     */
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * start of the subclasses of each class in children
+     */
+    private final int[] childrenStart;
+
+    /**
+     * ids of the direct subclasses, grouped by the superclass
+     */
+    private final int[] children;
+
+    /**
+     * start of the superclasses of each class in parents
+     */
+    private final int[] parentsStart;
+
+    /**
+     * ids of the direct superclasses, grouped by the subclass
+     */
+    private final int[] parents;
+
+    /**
+     * prefixed names of the leaves per prefixed class name
+     */
+    private final Map<String, List<String>> leavesCache = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the hierarchy of the model
+     * @param model the model graph (at least full SAVE model)
+     */
+    public SAVEClassHierarchy(Model model) {
+        this.model = model;
+        StmtIterator stmts = model.listStatements(null, RDFS.subClassOf, (RDFNode) null);
+        int nEdges = 0;
+        while (stmts.hasNext()) {
+            Statement stmt = stmts.next();
+            intern(stmt.getObject().asNode());
+            intern(stmt.getSubject().asNode());
+            nEdges++;
+        }
+        childrenStart = new int[nodes.size() + 1];
+        children = new int[nEdges];
+        int next = 0;
+        for (int id = 0; id < nodes.size(); id++) {
+            childrenStart[id] = next;
+            // same order of subclasses as in the DFS over the model
+            stmts = model.listStatements(null, RDFS.subClassOf, model.asRDFNode(nodes.get(id)));
+            while (stmts.hasNext()) {
+                children[next++] = ids.get(stmts.next().getSubject().asNode());
+            }
+        }
+        childrenStart[nodes.size()] = next;
+        parentsStart = new int[nodes.size() + 1];
+        parents = new int[nEdges];
+        next = 0;
+        for (int id = 0; id < nodes.size(); id++) {
+            parentsStart[id] = next;
+            stmts = model.listStatements(model.asRDFNode(nodes.get(id)).asResource(), RDFS.subClassOf, (RDFNode) null);
+            while (stmts.hasNext()) {
+                parents[next++] = ids.get(stmts.next().getObject().asNode());
+            }
+        }
+        parentsStart[nodes.size()] = next;
+    }
+
+    private int intern(Node node) {
+        Integer id = ids.get(node);
+        if (id == null) {
+            id = nodes.size();
+            ids.put(node, id);
+            nodes.add(node);
+        }
+        return id;
+    }
+
+    /**
+     * @return the number of classes in the hierarchy (with at least one subclass or superclass)
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param node the class node
+     * @return the id of the class, -1 if it is not in the hierarchy
+     */
+    public int getId(Node node) {
+        Integer id = ids.get(node);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id the id of the class
+     * @return the class node
+     */
+    public Node getNode(int id) {
+        return nodes.get(id);
+    }
+
+    /**
+     * Adds the class and all its (transitive) subclasses, i.e. rdfs:subClassOf*
+     * @param id the id of the class
+     * @param descendants the set of ids to add to
+     */
+    public void addDescendants(int id, BitSet descendants) {
+        if (descendants.get(id)) {
+            return;
+        }
+        descendants.set(id);
+        for (int i = childrenStart[id]; i < childrenStart[id + 1]; i++) {
+            addDescendants(children[i], descendants);
+        }
+    }
+
+    /**
+     * Adds the class and all its (transitive) superclasses, i.e. the classes C with id rdfs:subClassOf* C
+     * @param id the id of the class
+     * @param ancestors the set of ids to add to
+     */
+    public void addAncestors(int id, BitSet ancestors) {
+        if (ancestors.get(id)) {
+            return;
+        }
+        ancestors.set(id);
+        for (int i = parentsStart[id]; i < parentsStart[id + 1]; i++) {
+            addAncestors(parents[i], ancestors);
+        }
+    }
+
+    /**
+     * Materializes rdf:type/rdfs:subClassOf* of the model: for every rdf:type triple the individual gets the
+     * typeClosure property to its class and to all the superclasses of the class. Layered over the model, it lets
+     * the SPARQL procedure look the classes of an item up directly (SHACLPolicyTranslator.setTypeClosure)
+     * @param typeClosureProperty the URI of the property to use
+     * @return the new model with the closure triples only, with the prefixes of the model
+     */
+    public Model createTypeClosureModel(String typeClosureProperty) {
+        Model closure = JenaUtil.createMemoryModel();
+        closure.setNsPrefixes(model.getNsPrefixMap());
+        Property property = closure.createProperty(typeClosureProperty);
+        Map<Integer, BitSet> ancestorsCache = new HashMap<>();
+        StmtIterator stmts = model.listStatements(null, RDF.type, (RDFNode) null);
+        while (stmts.hasNext()) {
+            Statement stmt = stmts.next();
+            int id = getId(stmt.getObject().asNode());
+            if (id < 0) {
+                closure.add(stmt.getSubject(), property, stmt.getObject());
+                continue;
+            }
+            BitSet ancestors = ancestorsCache.computeIfAbsent(id, key -> {
+                BitSet set = new BitSet(nodes.size());
+                addAncestors(key, set);
+                return set;
+            });
+            for (int ancestor = ancestors.nextSetBit(0); ancestor >= 0; ancestor = ancestors.nextSetBit(ancestor + 1)) {
+                closure.add(stmt.getSubject(), property, closure.asRDFNode(nodes.get(ancestor)));
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * Same as JenaUtils.findLeaves (the same leaves in the same order), but with the precomputed hierarchy
+     * @param startClass the SAVE concept to start with (prefixed)
+     * @return the leaves originating from the startClass (prefixed), the startClass itself if it has no subclasses
+     */
+    public List<String> findLeaves(String startClass) {
+        return leavesCache.computeIfAbsent(startClass, name -> {
+            Integer id = ids.get(model.getResource(replacePrefixWithURI(name, model)).asNode());
+            if (id == null || childrenStart[id] == childrenStart[id + 1]) {
+                return Collections.singletonList(name);
+            }
+            return collectLeaves(id);
+        });
+    }
+
+    private List<String> collectLeaves(int start) {
+        List<String> leaves = new ArrayList<>();
+        for (int i = childrenStart[start]; i < childrenStart[start + 1]; i++) {
+            collectLeaves(children[i], new BitSet(nodes.size()), leaves);
+        }
+        return Collections.unmodifiableList(leaves);
+    }
+
+    private void collectLeaves(int id, BitSet visited, List<String> leaves) {
+        if (visited.get(id)) {
+            return;
+        }
+        visited.set(id);
+        if (childrenStart[id] == childrenStart[id + 1]) {
+            leaves.add(SPARQLUtils.getPrefixedLabel(model.asRDFNode(nodes.get(id)).toString(), model));
+        }
+        for (int i = childrenStart[id]; i < childrenStart[id + 1]; i++) {
+            collectLeaves(children[i], visited, leaves);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Combinations of attribute values of a normalized request (the cartesian product of the values).
+ * Only the values of each attribute are stored, a combination is decoded from its index on the fly
+ * (mixed radix, the last attribute changes fastest - the same order as Lists.cartesianProduct).
+ * The object can be a range of the full product, e.g. to give a part of the subrequests to one worker
+ */
+public class SAVECombinations extends AbstractList<List<String>> {
+
+    /**
+     * values per attribute, in the same order as the attributes of the request
+     */
+    private final String[][] values;
+
+    /**
+     * index (in the full product) of the first combination of this range
+     */
+    private final long from;
+
+    /**
+     * index (in the full product) after the last combination of this range
+     */
+    private final long to;
+
+    /**
+     * Creates the full product of the values
+     * @param values list of values per attribute
+     * @throws IllegalArgumentException if the number of combinations does not fit in a long
+     */
+    public SAVECombinations(List<List<String>> values) {
+        this.values = new String[values.size()][];
+        long count = 1;
+        for (int i = 0; i < values.size(); i++) {
+            this.values[i] = values.get(i).toArray(new String[0]);
+            try {
+                count = Math.multiplyExact(count, this.values[i].length);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Too many combinations of the values: " + values);
+            }
+        }
+        this.from = 0;
+        this.to = count;
+    }
+
+    private SAVECombinations(String[][] values, long from, long to) {
+        this.values = values;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return the number of combinations in this range (can be bigger than size())
+     */
+    public long count() {
+        return to - from;
+    }
+
+    /**
+     * @return the index of the first combination of this range in the full product
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    public int getnAttributes() {
+        return values.length;
+    }
+
+    /**
+     * @param attribute index of the attribute
+     * @return the number of values of this attribute
+     */
+    public int getnValues(int attribute) {
+        return values[attribute].length;
+    }
+
+    /**
+     * @param attribute index of the attribute
+     * @param valueIndex index of the value
+     * @return the value
+     */
+    public String getValue(int attribute, int valueIndex) {
+        return values[attribute][valueIndex];
+    }
+
+    /**
+     * Decodes the combination into the value indexes per attribute
+     * @param index index of the combination in this range
+     * @param indexes array to fill (of size getnAttributes()), a new one is created if null
+     * @return the index of the value for each attribute
+     */
+    public int[] getIndexes(long index, int[] indexes) {
+        if (index < 0 || index >= count()) {
+            throw new IndexOutOfBoundsException("Combination " + index + " out of " + count());
+        }
+        if (indexes == null) {
+            indexes = new int[values.length];
+        }
+        long rest = from + index;
+        for (int i = values.length - 1; i >= 0; i--) {
+            indexes[i] = (int) (rest % values[i].length);
+            rest /= values[i].length;
+        }
+        return indexes;
+    }
+
+    /**
+     * @param index index of the combination in this range
+     * @return the values of the combination
+     */
+    public List<String> getCombination(long index) {
+        return toValues(getIndexes(index, null));
+    }
+
+    @Override
+    public List<String> get(int index) {
+        return getCombination(index);
+    }
+
+    /**
+     * @return the number of combinations, or Integer.MAX_VALUE if there are more (use count())
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(count(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Iterates the combinations without decoding each index separately
+     * @return iterator over all the combinations of the range (also when there are more than Integer.MAX_VALUE)
+     */
+    @Override
+    public Iterator<List<String>> iterator() {
+        return new Iterator<List<String>>() {
+            private long position = 0;
+            private int[] indexes;
+
+            @Override
+            public boolean hasNext() {
+                return position < count();
+            }
+
+            @Override
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (indexes == null) {
+                    indexes = getIndexes(0, null);
+                } else {
+                    // increase the last attribute and carry over
+                    for (int i = values.length - 1; i >= 0; i--) {
+                        if (++indexes[i] < values[i].length) {
+                            break;
+                        }
+                        indexes[i] = 0;
+                    }
+                }
+                position++;
+                return toValues(indexes);
+            }
+        };
+    }
+
+    /**
+     * @param fromIndex index of the first combination, in this range
+     * @param toIndex index after the last combination, in this range
+     * @return the view of the combinations between the indexes
+     */
+    public SAVECombinations range(long fromIndex, long toIndex) {
+        if (fromIndex < 0 || toIndex > count() || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Range " + fromIndex + "-" + toIndex + " out of " + count());
+        }
+        return new SAVECombinations(values, from + fromIndex, from + toIndex);
+    }
+
+    @Override
+    public SAVECombinations subList(int fromIndex, int toIndex) {
+        return range(fromIndex, toIndex);
+    }
+
+    /**
+     * Splits the combinations into consecutive ranges, e.g. one per parallel worker
+     * @param rangeSize the maximal number of combinations per range
+     * @return the ranges in order
+     */
+    public List<SAVECombinations> split(long rangeSize) {
+        List<SAVECombinations> ranges = new ArrayList<>();
+        for (long first = 0; first < count(); first += rangeSize) {
+            ranges.add(range(first, Math.min(first + rangeSize, count())));
+        }
+        return ranges;
+    }
+
+    private List<String> toValues(int[] indexes) {
+        String[] combination = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            combination[i] = values[i][indexes[i]];
+        }
+        return Arrays.asList(combination);
+    }
+}
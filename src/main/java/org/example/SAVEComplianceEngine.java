@@ -0,0 +1,399 @@
+package org.example;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.RDF;
+import org.topbraid.shacl.vocabulary.SH;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Native compliance checking of normalized requests against a SAVE policy, without running SHACL rules.
+ * Evaluates the same conditions as the Core SHACL policy (SHACLPolicyTranslator.translateSAVEPolicyToSHACL):
+ * every rule is a set of allowed concept ids per attribute (the rdfs:subClassOf* closure of its classes, or its
+ * individuals for the party attributes), a subrequest matches the rules whose sets contain the types of all its values.
+ * The sets are kept as an inverted index (concept id to rules), so a value is matched only with the rules mentioning it.
+ * The subrequests also have to conform to save:RequestBase, as in the SHACL policy
+ */
+public class SAVEComplianceEngine {
+
+    private final Model unionModel;
+    private final Model saveModel;
+    private final SAVEVocabulary vocab;
+    private final SAVEClassHierarchy hierarchy;
+
+    /**
+     * ids of the concepts and individuals that are not in the class hierarchy, after the ids of the hierarchy
+     */
+    private final Map<Node, Integer> extraIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId;
+
+    /**
+     * prefixed names of the rules, the index in this list is the id of the rule
+     */
+    private final List<String> ruleNames = new ArrayList<>();
+
+    /**
+     * ids of the permissions and dispensations
+     */
+    private final BitSet permittingRules = new BitSet();
+
+    /**
+     * ids of the prohibitions
+     */
+    private final BitSet prohibitingRules = new BitSet();
+
+    /**
+     * inverted index: attribute (prefixed) to concept id to the ids of the rules allowing the concept
+     */
+    private final Map<String, Map<Integer, BitSet>> ruleIndex = new HashMap<>();
+
+    /**
+     * attribute (prefixed) to the ids of the rules with a condition on the attribute
+     */
+    private final Map<String, BitSet> constrainedRules = new HashMap<>();
+
+    /**
+     * attribute URI to the allowed classes of save:RequestBase
+     */
+    private final Map<String, BitSet> baseConditions = new HashMap<>();
+
+    /**
+     * attribute URIs that save:RequestBase requires (sh:minCount)
+     */
+    private final Set<String> baseRequired = new HashSet<>();
+
+    /**
+     * Compiles the policy
+     * @param policy the policy to check against
+     * @param unionModel full model (SAVE, DPV, ORCP, save.shapes), only read
+     * @param saveModel SAVE ontology (to find the individuals of the request classes, as SHACLInferenceRunner does)
+     */
+    public SAVEComplianceEngine(SAVEPolicy policy, Model unionModel, Model saveModel) {
+        this.unionModel = unionModel;
+        this.saveModel = saveModel;
+        this.vocab = new SAVEVocabulary(unionModel);
+        this.hierarchy = new SAVEClassHierarchy(unionModel);
+        this.nextId = new AtomicInteger(hierarchy.size());
+        List<SAVERule> rules = new ArrayList<>(policy.getPermissions());
+        rules.addAll(policy.getProhibitions());
+        rules.addAll(policy.getDispensations());
+        for (SAVERule rule : rules) {
+            addRule(rule);
+        }
+        addBaseConditions();
+    }
+
+    private void addRule(SAVERule rule) {
+        int id = ruleNames.size();
+        ruleNames.add(rule.getName());
+        if (rule.getType().endsWith("Permission") || rule.getType().endsWith("Dispensation")) {
+            permittingRules.set(id);
+        } else {
+            prohibitingRules.set(id);
+        }
+        addRuleCondition(id, vocab.dataPropertyPrefixedName, rule.getData().values(), false);
+        addRuleCondition(id, vocab.actionPropertyPrefixedName, rule.getActions().values(), false);
+        addRuleCondition(id, vocab.purposePropertyPrefixedName, rule.getPurposes().values(), false);
+        addRuleCondition(id, vocab.legalBasisPropertyPrefixedName, rule.getLegalBases().values(), false);
+        addRuleCondition(id, vocab.measurePropertyPrefixedName, rule.getMeasures().values(), false);
+        addRuleCondition(id, vocab.controllerPropertyPrefixedName, rule.getControllers().keySet(), true);
+        addRuleCondition(id, vocab.processorPropertyPrefixedName, rule.getProcessors().keySet(), true);
+        addRuleCondition(id, vocab.dataSubjectPropertyPrefixedName, rule.getDataSubjects().keySet(), true);
+        addRuleCondition(id, vocab.responsiblePartyPropertyPrefixedName, rule.getResponsibleParties().keySet(), true);
+        addRuleCondition(id, vocab.senderPropertyPrefixedName, rule.getSenders().keySet(), true);
+        addRuleCondition(id, vocab.recipientPropertyPrefixedName, rule.getRecipients().keySet(), true);
+    }
+
+    /**
+     * Same as the sh:class (or sh:hasValue) condition of the SHACL rule, with sh:minCount 1
+     * @param rule id of the rule
+     * @param attribute the attribute (prefixed)
+     * @param values the classes or the individuals of the rule
+     * @param isValue whether the values are individuals
+     */
+    private void addRuleCondition(int rule, String attribute, Collection<String> values, boolean isValue) {
+        if (values.isEmpty()) {
+            return;
+        }
+        BitSet allowed = new BitSet();
+        for (String value : values) {
+            Node node = unionModel.createResource(ModelUtils.replacePrefixWithURI(value, unionModel)).asNode();
+            if (isValue) {
+                allowed.set(getId(node));
+            } else {
+                addClass(node, allowed);
+            }
+        }
+        Map<Integer, BitSet> index = ruleIndex.computeIfAbsent(attribute, a -> new HashMap<>());
+        for (int id = allowed.nextSetBit(0); id >= 0; id = allowed.nextSetBit(id + 1)) {
+            index.computeIfAbsent(id, i -> new BitSet()).set(rule);
+        }
+        constrainedRules.computeIfAbsent(attribute, a -> new BitSet()).set(rule);
+    }
+
+    /**
+     * Reads the property shapes (sh:path, sh:class, sh:minCount) of save:RequestBase
+     */
+    private void addBaseConditions() {
+        Resource base = unionModel.getResource(ModelUtils.replacePrefixWithURI(vocab.requestBaseType, unionModel));
+        for (RDFNode property : unionModel.listObjectsOfProperty(base, SH.property).toList()) {
+            Resource shape = property.asResource();
+            if (!shape.hasProperty(SH.path) || !shape.getProperty(SH.path).getObject().isURIResource()) {
+                continue;
+            }
+            String path = shape.getPropertyResourceValue(SH.path).getURI();
+            if (shape.hasProperty(SH.class_)) {
+                addClass(shape.getPropertyResourceValue(SH.class_).asNode(),
+                        baseConditions.computeIfAbsent(path, p -> new BitSet()));
+            }
+            if (shape.hasProperty(SH.minCount) && shape.getProperty(SH.minCount).getInt() > 0) {
+                baseRequired.add(path);
+            }
+        }
+    }
+
+    private void addClass(Node cls, BitSet allowed) {
+        int id = hierarchy.getId(cls);
+        if (id >= 0) {
+            hierarchy.addDescendants(id, allowed);
+        } else {
+            allowed.set(getId(cls));
+        }
+    }
+
+    private int getId(Node node) {
+        int id = hierarchy.getId(node);
+        if (id >= 0) {
+            return id;
+        }
+        return extraIds.computeIfAbsent(node, n -> nextId.getAndIncrement());
+    }
+
+    /**
+     * Same as getId, but without creating a new id (for the values of requests)
+     * @param node the concept or the individual
+     * @return the id, -1 if no rule mentions it
+     */
+    private int findId(Node node) {
+        int id = hierarchy.getId(node);
+        if (id >= 0) {
+            return id;
+        }
+        return extraIds.getOrDefault(node, -1);
+    }
+
+    /**
+     * @return the number of rules (permissions, prohibitions and dispensations)
+     */
+    public int getnRules() {
+        return ruleNames.size();
+    }
+
+    /**
+     * For every value of every attribute of the request, computes the rules that accept it
+     * @param request the request (normalized)
+     * @return per attribute, per value the ids of the rules accepting the value; and the ids of the rules that
+     * can apply at all as the last element (only one value)
+     */
+    private BitSet[][] matchValues(SAVERuleNormalized request) {
+        return matchValues(request, false);
+    }
+
+    /**
+     * @param request the request (normalized)
+     * @param absentAttributesMatch whether an attribute the request does not have matches every rule, otherwise
+     *                              the rules with a condition on it (or on the base of the request) cannot apply
+     * @return same as matchValues(request)
+     */
+    private BitSet[][] matchValues(SAVERuleNormalized request, boolean absentAttributesMatch) {
+        List<String> attributes = request.getAttributes();
+        BitSet[][] matches = new BitSet[attributes.size() + 1][];
+        BitSet applicable = new BitSet();
+        applicable.set(0, ruleNames.size());
+        Set<String> present = new HashSet<>();
+        for (int a = 0; a < attributes.size(); a++) {
+            String attribute = attributes.get(a);
+            String attributeURI = ModelUtils.replacePrefixWithURI(attribute, unionModel);
+            present.add(attributeURI);
+            Map<Integer, BitSet> index = ruleIndex.getOrDefault(attribute, Collections.emptyMap());
+            BitSet unconstrained = (BitSet) applicable.clone();
+            unconstrained.andNot(constrainedRules.getOrDefault(attribute, new BitSet()));
+            List<String> values = request.getValues().get(a);
+            matches[a] = new BitSet[values.size()];
+            for (int j = 0; j < values.size(); j++) {
+                Resource individual = getIndividual(values.get(j), vocab.isClassAttribute(attribute));
+                BitSet types = new BitSet();
+                for (RDFNode type : unionModel.listObjectsOfProperty(individual, RDF.type).toList()) {
+                    int id = findId(type.asNode());
+                    if (id >= 0) {
+                        types.set(id);
+                    }
+                }
+                BitSet match = new BitSet();
+                BitSet base = baseConditions.get(attributeURI);
+                if (base == null || base.intersects(types)) {
+                    match.or(unconstrained);
+                    if (vocab.isValueAttribute(attribute)) {
+                        BitSet rules = index.get(findId(individual.asNode()));
+                        if (rules != null) {
+                            match.or(rules);
+                        }
+                    } else {
+                        for (int id = types.nextSetBit(0); id >= 0; id = types.nextSetBit(id + 1)) {
+                            BitSet rules = index.get(id);
+                            if (rules != null) {
+                                match.or(rules);
+                            }
+                        }
+                    }
+                }
+                matches[a][j] = match;
+            }
+        }
+        if (!absentAttributesMatch) {
+            // rules with a condition on an attribute the request does not have
+            for (Map.Entry<String, BitSet> constrained : constrainedRules.entrySet()) {
+                if (!present.contains(ModelUtils.replacePrefixWithURI(constrained.getKey(), unionModel))) {
+                    applicable.andNot(constrained.getValue());
+                }
+            }
+            if (!present.containsAll(baseRequired)) {
+                applicable.clear();
+            }
+        }
+        matches[attributes.size()] = new BitSet[]{applicable};
+        return matches;
+    }
+
+    /**
+     * Finds the rules that could match at least one subrequest of the request, using the inverted index of the rules.
+     * With the Core semantics every attribute the rule has a condition on must have a value allowed by the rule.
+     * The SPARQL translation binds a default value for an attribute the request does not have, so with SPARQL
+     * an absent attribute matches every rule. The other rules cannot infer anything for the request with the
+     * translation of the same semantics
+     * @param request the request (normalized)
+     * @param SPARQL whether the candidates are for the SPARQL translation, for the Core translation otherwise
+     * @return the prefixed names of the candidate rules
+     */
+    public List<String> getCandidateRules(SAVERuleNormalized request, boolean SPARQL) {
+        BitSet[][] matches = matchValues(request, SPARQL);
+        BitSet candidates = (BitSet) matches[matches.length - 1][0].clone();
+        for (int a = 0; a < matches.length - 1; a++) {
+            BitSet attributeMatch = new BitSet();
+            for (BitSet match : matches[a]) {
+                attributeMatch.or(match);
+            }
+            candidates.and(attributeMatch);
+        }
+        List<String> names = new ArrayList<>();
+        for (int r = candidates.nextSetBit(0); r >= 0; r = candidates.nextSetBit(r + 1)) {
+            names.add(ruleNames.get(r));
+        }
+        return names;
+    }
+
+    /**
+     * Same individual as SHACLInferenceRunner uses in the materialized subrequest
+     * @param value the value of the request
+     * @param valueIsClass whether the value is a class
+     * @return the individual
+     */
+    private Resource getIndividual(String value, boolean valueIsClass) {
+        if (valueIsClass) {
+            return JenaUtils.getAnyIndividualFromConcept(value, vocab.savePrefix, saveModel).inModel(unionModel);
+        }
+        return unionModel.createResource(ModelUtils.replacePrefixWithURI(value, unionModel));
+    }
+
+    private BitSet matchSubrequest(BitSet[][] matches, int[] indexes) {
+        BitSet match = (BitSet) matches[indexes.length][0].clone();
+        for (int a = 0; a < indexes.length && !match.isEmpty(); a++) {
+            match.and(matches[a][indexes[a]]);
+        }
+        return match;
+    }
+
+    /**
+     * Counts the answers of the subrequests, without any report
+     * @param request the request (normalized)
+     * @return the number of subrequests, permitted subrequests and prohibited subrequests
+     */
+    public long[] countAnswers(SAVERuleNormalized request) {
+        BitSet[][] matches = matchValues(request);
+        SAVECombinations combinations = request.getCombinations();
+        long[] counts = new long[3];
+        int[] indexes = new int[combinations.getnAttributes()];
+        for (long i = 0; i < combinations.count(); i++) {
+            BitSet match = matchSubrequest(matches, combinations.getIndexes(i, indexes));
+            counts[0]++;
+            if (match.intersects(permittingRules)) {
+                counts[1]++;
+            }
+            if (match.intersects(prohibitingRules)) {
+                counts[2]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Performs compliance checking on one normalized request, the result has the same triples as the Core procedure
+     * (save:conformsTo, save:prohibitedBy and save:answer for every subrequest and the answer of the parent request)
+     * @param request the request (normalized)
+     * @param mode mode of the test for the result
+     * @param verbose whether to output the logs
+     * @return the result with stats and inferred triples
+     */
+    public SHACLComplianceResult checkNormalizedSAVERule(SAVERuleNormalized request, SHACLComplianceResult.Mode mode,
+                                                         boolean verbose) {
+        SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
+        long start = System.nanoTime();
+        BitSet[][] matches = matchValues(request);
+        SAVECombinations combinations = request.getCombinations();
+        Model triples = result.getInfModel();
+        Property conformsTo = triples.createProperty(ModelUtils.replacePrefixWithURI(vocab.conformsPropertyPrefixedName, unionModel));
+        Property prohibitedBy = triples.createProperty(ModelUtils.replacePrefixWithURI(vocab.prohibitedPropertyPrefixedName, unionModel));
+        Property answer = triples.createProperty(ModelUtils.replacePrefixWithURI(vocab.answerPropertyPrefixedName, unionModel));
+        Resource[] rules = new Resource[ruleNames.size()];
+        for (int r = 0; r < rules.length; r++) {
+            rules[r] = triples.createResource(ModelUtils.replacePrefixWithURI(ruleNames.get(r), unionModel));
+        }
+        long[] counts = new long[3];
+        int[] indexes = new int[combinations.getnAttributes()];
+        for (long i = 0; i < combinations.count(); i++) {
+            BitSet match = matchSubrequest(matches, combinations.getIndexes(i, indexes));
+            counts[0]++;
+            if (match.isEmpty()) {
+                continue;
+            }
+            Resource subrequest = triples.createResource(ModelUtils.replacePrefixWithURI(request.getName() + "_" + i, unionModel));
+            for (int r = match.nextSetBit(0); r >= 0; r = match.nextSetBit(r + 1)) {
+                subrequest.addProperty(permittingRules.get(r) ? conformsTo : prohibitedBy, rules[r]);
+            }
+            if (match.intersects(permittingRules)) {
+                subrequest.addProperty(answer, "permitted");
+                counts[1]++;
+            }
+            if (match.intersects(prohibitingRules)) {
+                subrequest.addProperty(answer, "prohibited");
+                counts[2]++;
+            }
+        }
+        result.addParentAnswer(request.getName(), counts, vocab);
+        double time = (System.nanoTime() - start) / 1e6;
+        if (verbose) {
+            System.out.println("Checked " + counts[0] + " subrequests natively in " + time + " ms");
+        }
+        result.addnSubrequests(combinations.size());
+        if (counts[0] > 0) {
+            result.addExecTimePerSubrequest(time / counts[0]);
+        }
+        result.setnProcessed(1);
+        result.addExecTimePerRequest(time);
+        result.setExecTimeTotal(time);
+        return result;
+    }
+}
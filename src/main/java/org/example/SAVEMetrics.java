@@ -0,0 +1,93 @@
+package org.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of the stages of compliance checking, recorded as Micrometer timers tagged with the stage, the policy
+ * and the procedure (core / sparql) in the registry of the application (e.g. exported by the actuator).
+ * DISABLED has no registry and records nothing, it is the default of the runners (tests and benchmarks)
+ */
+public class SAVEMetrics {
+
+    public static final String NORMALIZATION = "normalization";
+    public static final String MATERIALIZATION = "materialization";
+    public static final String UNION_MODEL = "union_model";
+    public static final String RULE_EXECUTION = "rule_execution";
+    public static final String RESULT_EXTRACTION = "result_extraction";
+    public static final String POLICY_LOADING = "policy_loading";
+    public static final String COMPLIANCE_CHECK = "compliance_check";
+
+    public static final String CORE = "core";
+    public static final String SPARQL = "sparql";
+
+    /**
+     * tag value when the policy or the procedure is not known
+     */
+    public static final String NONE = "none";
+
+    /**
+     * name of the timers, save_stage_latency_seconds in Prometheus
+     */
+    public static final String METRIC_NAME = "save.stage.latency";
+
+    public static final SAVEMetrics DISABLED = new SAVEMetrics(null);
+
+    private final MeterRegistry registry;
+
+    /**
+     * "stage|policy|procedure" to the timer, so the timers are not looked up by their tags on every record
+     */
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * @param registry the registry to record the timers in, null to record nothing
+     */
+    public SAVEMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param policyName the name of the policy (shapes file)
+     * @return the procedure of the policy, as the app decides it from the name
+     */
+    public static String getProcedure(String policyName) {
+        return policyName.contains("sparql") ? SPARQL : CORE;
+    }
+
+    /**
+     * Records the latency of one stage
+     * @param stage the stage, e.g. RULE_EXECUTION
+     * @param policy the policy, NONE if not known
+     * @param procedure CORE, SPARQL or NONE
+     * @param nanos the latency in ns
+     */
+    public void record(String stage, String policy, String procedure, long nanos) {
+        if (registry == null) {
+            return;
+        }
+        timers.computeIfAbsent(stage + "|" + policy + "|" + procedure, key -> Timer.builder(METRIC_NAME)
+                .description("Latency of the stages of SAVE compliance checking")
+                .tags("stage", stage, "policy", policy, "procedure", procedure)
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time since start
+     * @param stage the stage
+     * @param policy the policy, NONE if not known
+     * @param procedure CORE, SPARQL or NONE
+     * @param start the System.nanoTime() at the start of the stage
+     */
+    public void recordSince(String stage, String policy, String procedure, long start) {
+        if (registry != null) {
+            record(stage, policy, procedure, System.nanoTime() - start);
+        }
+    }
+}
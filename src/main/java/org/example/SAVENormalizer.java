@@ -1,6 +1,5 @@
 package org.example;
 
-import com.google.common.collect.Lists;
 import org.apache.jena.rdf.model.Model;
 
 import java.util.*;
@@ -13,6 +12,7 @@ public class SAVENormalizer {
 
     private Model unionModel;
     private SAVEVocabulary vocab;
+    private SAVEClassHierarchy hierarchy;
 
     /**
      * Returns the full model (SAVE + whatever else is needed)
@@ -25,11 +25,13 @@ public class SAVENormalizer {
 
     /**
      * Constructor
-     * @param unionModel the full model needed for normalization (at least full SAVE model and the policy)
+     * @param unionModel the full model needed for normalization (at least full SAVE model and the policy),
+     *                   its class hierarchy is indexed once here
      */
     public SAVENormalizer(Model unionModel) {
         this.unionModel = unionModel;
         vocab = new SAVEVocabulary(unionModel);
+        hierarchy = new SAVEClassHierarchy(unionModel);
     }
 
     /**
@@ -50,7 +52,7 @@ public class SAVENormalizer {
                 actionLeaves.addAll(rule.getActions().values());
             } else {
                 for (String actionClass : rule.getActions().values()) {
-                    actionLeaves.addAll(JenaUtils.findLeaves(actionClass, unionModel));
+                    actionLeaves.addAll(hierarchy.findLeaves(actionClass));
                 }
             }
 
@@ -66,7 +68,7 @@ public class SAVENormalizer {
                 dataLeaves.addAll(rule.getData().values());
             } else {
                 for (String dataClass : rule.getData().values()) {
-                    dataLeaves.addAll(JenaUtils.findLeaves(dataClass, unionModel));
+                    dataLeaves.addAll(hierarchy.findLeaves(dataClass));
                 }
             }
 
@@ -82,7 +84,7 @@ public class SAVENormalizer {
                 purposeLeaves.addAll(rule.getPurposes().values());
             } else {
                 for (String purposeClass : rule.getPurposes().values()) {
-                    purposeLeaves.addAll(JenaUtils.findLeaves(purposeClass, unionModel));
+                    purposeLeaves.addAll(hierarchy.findLeaves(purposeClass));
                 }
             }
             if (!purposeLeaves.isEmpty()) {
@@ -97,7 +99,7 @@ public class SAVENormalizer {
                 legalBasisLeaves.addAll(rule.getLegalBases().values());
             } else {
                 for (String legalBasisClass : rule.getLegalBases().values()) {
-                    legalBasisLeaves.addAll(JenaUtils.findLeaves(legalBasisClass, unionModel));
+                    legalBasisLeaves.addAll(hierarchy.findLeaves(legalBasisClass));
                 }
             }
             if (!legalBasisLeaves.isEmpty()) {
@@ -112,7 +114,7 @@ public class SAVENormalizer {
                 measuresLeaves.addAll(rule.getMeasures().values());
             } else {
                 for (String measureClass : rule.getMeasures().values()) {
-                    measuresLeaves.addAll(JenaUtils.findLeaves(measureClass, unionModel));
+                    measuresLeaves.addAll(hierarchy.findLeaves(measureClass));
                 }
             }
             if (!measuresLeaves.isEmpty()) {
@@ -166,10 +168,10 @@ public class SAVENormalizer {
         }
 
         // now lets create the child rules
-        List<List<String>> combinations = Lists.cartesianProduct(saveRuleNormalized.getValues());
+        SAVECombinations combinations = new SAVECombinations(saveRuleNormalized.getValues());
         saveRuleNormalized.setCombinations(combinations);
         if(verbose) {
-            System.out.println("The size of the combinations is " + combinations.size());
+            System.out.println("The size of the combinations is " + combinations.count());
         }
 //        System.out.println(combinations.subList(1, 5));
         return saveRuleNormalized;
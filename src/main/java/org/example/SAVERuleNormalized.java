@@ -19,9 +19,9 @@ public class SAVERuleNormalized extends SAVERule {
     private List<List<String>> values;
 
     /**
-     * List of combinations of attributes and values (basically, light version of atomic sub-rules)
+     * Combinations of attributes and values (basically, light version of atomic sub-rules), decoded on demand
      */
-    private List<List<String>> combinations;
+    private SAVECombinations combinations;
 
     public List<List<String>> getValues() {
         return values;
@@ -47,11 +47,11 @@ public class SAVERuleNormalized extends SAVERule {
         attributes.add(attribute);
     }
 
-    public List<List<String>> getCombinations() {
+    public SAVECombinations getCombinations() {
         return combinations;
     }
 
-    public void setCombinations(List<List<String>> combinations) {
+    public void setCombinations(SAVECombinations combinations) {
         this.combinations = combinations;
     }
 
@@ -0,0 +1,80 @@
+package org.example;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.topbraid.jenax.util.JenaUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the terms used to materialize requests: every prefixed name (attribute, value, type) is resolved
+ * into a Node once, as is the default individual of every concept. Shared by the runners of the same models,
+ * so materializing a subrequest only looks the terms up
+ */
+public class SAVETermDictionary {
+
+    private final Model prefixes;
+    private final Model saveModel;
+    private final String savePrefix;
+
+    /**
+     * prefixed name to its URI node
+     */
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * prefixed name of the concept to the node of its default individual
+     */
+    private final Map<String, Node> individuals = new ConcurrentHashMap<>();
+
+    /**
+     * @param prefixModel the model with the prefixes to resolve the names with (the prefixes are copied)
+     * @param saveModel SAVE ontology, to find the individuals of the concepts
+     * @param savePrefix default namespace prefix of the individuals
+     */
+    public SAVETermDictionary(Model prefixModel, Model saveModel, String savePrefix) {
+        this.prefixes = JenaUtil.createMemoryModel();
+        this.prefixes.setNsPrefixes(prefixModel.getNsPrefixMap());
+        this.saveModel = saveModel;
+        this.savePrefix = savePrefix;
+    }
+
+    /**
+     * @param prefixedName the prefixed name
+     * @return the URI node, the same as from ModelUtils.replacePrefixWithURI
+     */
+    public Node getNode(String prefixedName) {
+        Node node = nodes.get(prefixedName);
+        if (node == null) {
+            node = nodes.computeIfAbsent(prefixedName,
+                    name -> NodeFactory.createURI(ModelUtils.replacePrefixWithURI(name, prefixes)));
+        }
+        return node;
+    }
+
+    /**
+     * Node of a numbered name (subrequest), derived from the node of the name without resolving it again
+     * @param prefixedName the prefixed name
+     * @param number the number to add with "_"
+     * @return the URI node of prefixedName_number
+     */
+    public Node getNode(String prefixedName, long number) {
+        return NodeFactory.createURI(getNode(prefixedName).getURI() + "_" + number);
+    }
+
+    /**
+     * @param concept the prefixed name of the concept
+     * @return the node of the same individual as JenaUtils.getAnyIndividualFromConcept
+     * @throws java.util.NoSuchElementException if the concept has no individual
+     */
+    public Node getIndividual(String concept) {
+        Node individual = individuals.get(concept);
+        if (individual == null) {
+            individual = individuals.computeIfAbsent(concept,
+                    name -> JenaUtils.getAnyIndividualFromConcept(name, savePrefix, saveModel).asNode());
+        }
+        return individual;
+    }
+}
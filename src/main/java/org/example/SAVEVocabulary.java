@@ -128,6 +128,7 @@ public class SAVEVocabulary {
     public final String parentPropertyPrefixedName;
     public final String childPropertyPrefixedName;
     public final String answerPropertyPrefixedName;
+    public final String resultPropertyPrefixedName;
     public final String answerPermittedPropertyPrefixedName;
     public final String answerProhibitedPropertyPrefixedName;
     public final String conformsPropertyPrefixedName;
@@ -136,6 +137,10 @@ public class SAVEVocabulary {
     public final String nPermittedPropertyPrefixedName;
     public final String nProhibitedPropertyPrefixedName;
     public final String rulePropertyPrefixedName;
+    /**
+     * Materialized rdf:type/rdfs:subClassOf* (SAVEClassHierarchy.createTypeClosureModel)
+     */
+    public final String typeClosurePropertyPrefixedName;
     /**
      * Names of attributes related to SPARQL version of compliance checking
      */
@@ -199,6 +204,7 @@ public class SAVEVocabulary {
         parentPropertyPrefixedName = savePrefix + ":" + "parent";
         childPropertyPrefixedName = savePrefix + ":" + "child";
         answerPropertyPrefixedName = savePrefix + ":" + "answer";
+        resultPropertyPrefixedName = savePrefix + ":" + "result";
         answerPermittedPropertyPrefixedName = savePrefix + ":" + "answerPermitted";
         answerProhibitedPropertyPrefixedName = savePrefix + ":" + "answerProhibited";
         conformsPropertyPrefixedName = savePrefix + ":" + "conformsTo";
@@ -207,6 +213,7 @@ public class SAVEVocabulary {
         nPermittedPropertyPrefixedName = savePrefix + ":" + "nPermitted";
         nProhibitedPropertyPrefixedName = savePrefix + ":" + "nProhibited";
         rulePropertyPrefixedName = savePrefix + ":" + "rule";
+        typeClosurePropertyPrefixedName = savePrefix + ":" + "typeClosure";
         classAtributes = new HashSet<>(Arrays.asList(actionPropertyPrefixedName, dataPropertyPrefixedName,
                 purposePropertyPrefixedName, measurePropertyPrefixedName, legalBasisPropertyPrefixedName));
         valueAtributes = new HashSet<>(Arrays.asList(controllerPropertyPrefixedName, processorPropertyPrefixedName,
@@ -0,0 +1,263 @@
+package org.example;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.MultiUnion;
+import org.apache.jena.graph.impl.WrappedGraph;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+import org.topbraid.jenax.util.ARQFactory;
+import org.topbraid.jenax.util.JenaUtil;
+import org.topbraid.shacl.arq.SHACLFunctions;
+import org.topbraid.shacl.engine.Shape;
+import org.topbraid.shacl.engine.ShapesGraph;
+import org.topbraid.shacl.js.SHACLScriptEngineManager;
+import org.topbraid.shacl.model.SHFactory;
+import org.topbraid.shacl.rules.RuleEngine;
+import org.topbraid.shacl.util.SHACLSystemModel;
+import org.topbraid.shacl.util.SHACLUtil;
+import org.topbraid.shacl.vocabulary.SH;
+import org.topbraid.shacl.vocabulary.TOSH;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Shapes graph prepared once and reused for every inference run.
+ * Does the same as RuleUtil.executeRules, but the SHACL system model union, the function registration,
+ * the ShapesGraph and the list of shapes with rules are built only in the constructor.
+ * The rule objects, their order and the focus nodes of the targets are still computed by each RuleEngine
+ * (the targets depend on the data), the rule queries are parsed once and cached by ARQFactory.
+ * The rules of a run can be limited to some of the SAVE rules (e.g. the candidate rules of a request), the other
+ * rules are hidden from the rule engine by a view of the shapes graph, so nothing is compiled again
+ */
+public class SHACLCompiledPolicy {
+
+    private final Model shapesModel;
+    private final URI shapesGraphURI;
+    private final ShapesGraph shapesGraph;
+    private final List<Shape> ruleShapes;
+
+    /**
+     * the shapes run by RuleEngine.executeAll: the shapes with rules and the ones with sh:values
+     */
+    private final List<Shape> rootShapes;
+
+    /**
+     * prefixed name of every SAVE rule of the policy to its sh:rule node
+     */
+    private final Map<String, Node> policyRules = new HashMap<>();
+
+    /**
+     * profiler of the rules, null if not profiled
+     */
+    private volatile SHACLRuleProfiler profiler;
+
+    /**
+     * Compiles the shapes model
+     * @param shapesModel the shapes model (SHACL policy), not modified
+     */
+    public SHACLCompiledPolicy(Model shapesModel) {
+        if (!shapesModel.contains(TOSH.hasShape, RDF.type, (RDFNode) null)) {
+            Graph union = new MultiUnion(new Graph[]{SHACLSystemModel.getSHACLModel().getGraph(), shapesModel.getGraph()});
+            shapesModel = ModelFactory.createModelForGraph(union);
+        }
+        this.shapesModel = shapesModel;
+        SHACLFunctions.registerFunctions(shapesModel);
+        this.shapesGraphURI = SHACLUtil.createRandomShapesGraphURI();
+        this.shapesGraph = new ShapesGraph(shapesModel);
+        this.ruleShapes = new ArrayList<>();
+        this.rootShapes = new ArrayList<>();
+        for (Shape shape : shapesGraph.getRootShapes()) {
+            if (shape.getShapeResource().hasProperty(SH.rule)) {
+                ruleShapes.add(shape);
+                rootShapes.add(shape);
+            } else {
+                for (Resource property : JenaUtil.getResourceProperties(shape.getShapeResource(), SH.property)) {
+                    if (property.hasProperty(SH.values)) {
+                        rootShapes.add(shape);
+                        break;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Resource> rule : SHACLPolicyTranslator.getRuleShapes(shapesModel).entrySet()) {
+            policyRules.put(rule.getKey(), rule.getValue().asNode());
+        }
+    }
+
+    /**
+     * @return the prefixed names of the SAVE rules of the policy (found by their labels)
+     */
+    public Set<String> getRuleNames() {
+        return Collections.unmodifiableSet(policyRules.keySet());
+    }
+
+    /**
+     * @param profiler the profiler to record every rule run into, null to stop profiling
+     */
+    public void setProfiler(SHACLRuleProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public SHACLRuleProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Runs all the rules on the data model
+     * @param dataModel the data model, not modified
+     * @return the model with inferred triples
+     * @throws CancellationException if the thread is interrupted, its interrupt flag is set again
+     */
+    public Model executeRules(Model dataModel) {
+        return execute(dataModel, null, null);
+    }
+
+    /**
+     * Runs the rules on the data model, without the SAVE rules that are not given
+     * @param dataModel the data model, not modified
+     * @param ruleNames prefixed names of the SAVE rules to run, null to run all the rules; the other rules
+     *                  (e.g. the final rule) are always run
+     * @return the model with inferred triples
+     * @throws CancellationException if the thread is interrupted, its interrupt flag is set again
+     */
+    public Model executeRules(Model dataModel, Collection<String> ruleNames) {
+        return execute(dataModel, null, ruleNames);
+    }
+
+    /**
+     * Runs only the rules of the shapes targeting the focus node
+     * @param focusNode the node to infer for, its model is used as data model
+     * @return the model with inferred triples
+     * @throws CancellationException if the thread is interrupted, its interrupt flag is set again
+     */
+    public Model executeRules(RDFNode focusNode) {
+        return execute(focusNode.getModel(), focusNode, null);
+    }
+
+    /**
+     * Runs only the rules of the shapes targeting the focus node, without the SAVE rules that are not given
+     * @param focusNode the node to infer for, its model is used as data model
+     * @param ruleNames prefixed names of the SAVE rules to run, null to run all the rules; the other rules
+     *                  (e.g. the final rule) are always run
+     * @return the model with inferred triples
+     * @throws CancellationException if the thread is interrupted, its interrupt flag is set again
+     */
+    public Model executeRules(RDFNode focusNode, Collection<String> ruleNames) {
+        return execute(focusNode.getModel(), focusNode, ruleNames);
+    }
+
+    private Model execute(Model dataModel, RDFNode focusNode, Collection<String> ruleNames) {
+        Model inferences = JenaUtil.createDefaultModel();
+        Model data = ModelFactory.createModelForGraph(new MultiUnion(new Graph[]{dataModel.getGraph(), inferences.getGraph()}));
+        Dataset dataset = ARQFactory.get().getDataset(data);
+        dataset.addNamedModel(shapesGraphURI.toString(), shapesModel);
+        SHACLRuleProfiler profiler = this.profiler;
+        RuleEngine engine = profiler == null ? new RuleEngine(dataset, shapesGraphURI, shapesGraph, inferences)
+                : profiler.createRuleEngine(dataset, shapesGraphURI, shapesGraph, inferences);
+        Set<Node> hiddenRules = getHiddenRules(ruleNames);
+        boolean nested = SHACLScriptEngineManager.begin();
+        try {
+            engine.applyEntailments();
+            if (focusNode == null && hiddenRules.isEmpty()) {
+                engine.executeAll();
+            } else {
+                List<Shape> shapes = new ArrayList<>();
+                for (Shape shape : focusNode == null ? rootShapes : ruleShapes) {
+                    if (focusNode == null || shape.getShapeResource().hasTargetNode(focusNode)) {
+                        shapes.add(hiddenRules.isEmpty() ? shape : hideRules(shape, hiddenRules));
+                    }
+                }
+                engine.executeShapes(shapes, focusNode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Rule execution was interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } finally {
+            SHACLScriptEngineManager.end(nested);
+        }
+        return inferences;
+    }
+
+    /**
+     * @param ruleNames prefixed names of the SAVE rules to run, null for all
+     * @return the sh:rule nodes of the SAVE rules not to run
+     */
+    private Set<Node> getHiddenRules(Collection<String> ruleNames) {
+        if (ruleNames == null) {
+            return Collections.emptySet();
+        }
+        Set<Node> hiddenRules = new HashSet<>();
+        for (Map.Entry<String, Node> rule : policyRules.entrySet()) {
+            if (!ruleNames.contains(rule.getKey())) {
+                hiddenRules.add(rule.getValue());
+            }
+        }
+        return hiddenRules;
+    }
+
+    /**
+     * The rule engine reads the rules of a shape from its shape resource, so the shape is read through a view of
+     * the shapes graph without the hidden rules. The rest of the shape (targets, order) is the same
+     * @param shape the compiled shape
+     * @param hiddenRules the sh:rule nodes not to run
+     * @return the shape without the hidden rules, for one run
+     */
+    private Shape hideRules(Shape shape, Set<Node> hiddenRules) {
+        Model view = ModelFactory.createModelForGraph(new RuleFilterGraph(shapesModel.getGraph(), hiddenRules));
+        return new Shape(shapesGraph, SHFactory.asShape(shape.getShapeResource().inModel(view)));
+    }
+
+    /**
+     * Shapes graph without the sh:rule triples of some rules, the rest is read from the base graph
+     */
+    private static class RuleFilterGraph extends WrappedGraph {
+
+        private final Set<Node> hiddenRules;
+
+        RuleFilterGraph(Graph base, Set<Node> hiddenRules) {
+            super(base);
+            this.hiddenRules = hiddenRules;
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(Triple match) {
+            return find(match.getMatchSubject(), match.getMatchPredicate(), match.getMatchObject());
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+            ExtendedIterator<Triple> triples = super.find(s, p, o);
+            if (p != null && p.isConcrete() && !p.equals(SH.rule.asNode())) {
+                return triples;
+            }
+            return triples.filterDrop(triple -> triple.getPredicate().equals(SH.rule.asNode())
+                    && hiddenRules.contains(triple.getObject()));
+        }
+
+        @Override
+        public boolean contains(Triple triple) {
+            return contains(triple.getMatchSubject(), triple.getMatchPredicate(), triple.getMatchObject());
+        }
+
+        @Override
+        public boolean contains(Node s, Node p, Node o) {
+            ExtendedIterator<Triple> triples = find(s, p, o);
+            try {
+                return triples.hasNext();
+            } finally {
+                triples.close();
+            }
+        }
+    }
+}
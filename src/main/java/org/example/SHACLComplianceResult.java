@@ -1,16 +1,29 @@
 package org.example;
 
 import com.google.common.collect.Streams;
+import com.google.gson.GsonBuilder;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.compose.MultiUnion;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
 import org.topbraid.jenax.util.JenaUtil;
-import org.topbraid.shacl.util.ModelPrinter;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.Map;
 import java.util.stream.Stream;
@@ -20,23 +33,25 @@ import java.util.stream.Stream;
  * Class for collecting necessary information for inference result, such as:
  * - execution time (for the whole request and AVG per subrequest);
  * - inferred triples (all)
+ * The numbers are kept in primitive columns and the total result only refers to the inferred triples
+ * of its parts (a union view), so aggregating large experiments copies no models
  */
 public class SHACLComplianceResult {
 
     /**
      * # of requests per batch
      */
-    private List<Integer> nRequestsPerBatch = new ArrayList<>();
+    private IntColumn nRequestsPerBatch = new IntColumn();
 
     /**
      * # of rules per policy
      */
-    private List<Integer> nRulesPerPolicy = new ArrayList<>();
+    private IntColumn nRulesPerPolicy = new IntColumn();
 
     /**
      * total time per batch of separate requests (for atomic mostly)
      */
-    private List<Double> execTimeTotalPerBatch = new ArrayList<>();
+    private DoubleColumn execTimeTotalPerBatch = new DoubleColumn();
 
     /**
      * total time for a batch of separate requests
@@ -45,22 +60,22 @@ public class SHACLComplianceResult {
     /**
      * total times for each request in the batch (with all subrequests)
      */
-    private List<Double> execTimePerRequest = new ArrayList<>();
+    private DoubleColumn execTimePerRequest = new DoubleColumn();
 
     /**
      * number of subrequests per request
      */
-    private List<Integer> nSubrequests = new ArrayList<>();
+    private LongColumn nSubrequests = new LongColumn();
 
     /**
      * time for each separate subrequest
      */
-    private List<Double> execTimePerSubrequest = new ArrayList<>();
+    private DoubleColumn execTimePerSubrequest = new DoubleColumn();
 
     /**
      * map showing average time per request depending on number of subrequests
      */
-    private  Map<Integer,Double> avgTimePerNumberOfSubrequests;
+    private  Map<Long,Double> avgTimePerNumberOfSubrequests;
 
     /**
      * map showing average time per request depending on number of subrequests (bucketed)
@@ -87,7 +102,7 @@ public class SHACLComplianceResult {
     /**
      * map showing count of results we got depending on number of subrequests
      */
-    private Map<Integer, Long> countPerNumberOfSubrequests;
+    private Map<Long, Long> countPerNumberOfSubrequests;
     /**
      * map showing count of results we got depending on the number of requests
      */
@@ -109,6 +124,21 @@ public class SHACLComplianceResult {
      */
     private Model subrequestsModel;
 
+    /**
+     * the inferred triples of the aggregated results with fewer triples are copied into the total result
+     */
+    private static final int SEGMENT_MIN_SIZE = 10000;
+
+    /**
+     * names of the requests answered with addParentAnswer or addAnswer
+     */
+    private List<String> answeredRequests = new ArrayList<>();
+
+    /**
+     * answers of the answered requests, Answer ordinals: permitted * 8 + prohibited
+     */
+    private IntColumn answers = new IntColumn();
+
 
     /**
      * Number of requests to be processed in this result
@@ -133,6 +163,44 @@ public class SHACLComplianceResult {
         DEMO_APP
     }
 
+    /**
+     * Final answers of a request, as in the answerPermitted / answerProhibited triples
+     */
+    public enum Answer {
+        GRANTED("granted"),
+        PART_GRANTED("part-granted"),
+        NOT_GRANTED("not granted"),
+        PROHIBITED("prohibited"),
+        PART_PROHIBITED("part-prohibited"),
+        NOT_PROHIBITED("not prohibited");
+
+        private final String label;
+
+        Answer(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the literal of the answer triple
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @param label the literal of an answer triple
+         * @return the answer with this literal, null if there is none
+         */
+        public static Answer fromLabel(String label) {
+            for (Answer answer : values()) {
+                if (answer.label.equals(label)) {
+                    return answer;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Test mode of the current result
      */
@@ -172,10 +240,10 @@ public class SHACLComplianceResult {
     }
 
     public void setnRulesPerPolicy(List<Integer> nRulesPerPolicy) {
-        this.nRulesPerPolicy = nRulesPerPolicy;
+        this.nRulesPerPolicy = new IntColumn(nRulesPerPolicy);
     }
 
-    public void addnRulesPerPolicy(Integer nRulesPerPolicy) {
+    public void addnRulesPerPolicy(int nRulesPerPolicy) {
         this.nRulesPerPolicy.add(nRulesPerPolicy);
     }
 
@@ -184,7 +252,7 @@ public class SHACLComplianceResult {
     }
 
     public void setnRequestsPerBatch(List<Integer> nRequestsPerBatch) {
-        this.nRequestsPerBatch = nRequestsPerBatch;
+        this.nRequestsPerBatch = new IntColumn(nRequestsPerBatch);
     }
 
     public List<Double> getExecTimeTotalPerBatch() {
@@ -192,7 +260,7 @@ public class SHACLComplianceResult {
     }
 
     public void setExecTimeTotalPerBatch(List<Double> execTimeTotalPerBatch) {
-        this.execTimeTotalPerBatch = execTimeTotalPerBatch;
+        this.execTimeTotalPerBatch = new DoubleColumn(execTimeTotalPerBatch);
     }
 
     public int getnProcessed() {
@@ -208,7 +276,7 @@ public class SHACLComplianceResult {
     }
 
     public void setExecTimePerRequest(List<Double> execTimePerRequest) {
-        this.execTimePerRequest = execTimePerRequest;
+        this.execTimePerRequest = new DoubleColumn(execTimePerRequest);
     }
 
     public void addExecTimePerRequest(double execTimePerRequest) {
@@ -228,22 +296,22 @@ public class SHACLComplianceResult {
     }
 
     public void setExecTimePerSubrequest(List<Double> execTimePerSubrequest) {
-        this.execTimePerSubrequest = execTimePerSubrequest;
+        this.execTimePerSubrequest = new DoubleColumn(execTimePerSubrequest);
     }
 
     public void addExecTimePerSubrequest(double execTimePerSubrequest) {
         this.execTimePerSubrequest.add(execTimePerSubrequest);
     }
 
-    public List<Integer> getnSubrequests() {
+    public List<Long> getnSubrequests() {
         return nSubrequests;
     }
 
-    public void setnSubrequests(List<Integer> nSubrequests) {
-        this.nSubrequests = nSubrequests;
+    public void setnSubrequests(List<Long> nSubrequests) {
+        this.nSubrequests = new LongColumn(nSubrequests);
     }
 
-    public void addnSubrequests(Integer nSubrequests) {
+    public void addnSubrequests(long nSubrequests) {
         this.nSubrequests.add(nSubrequests);
     }
 
@@ -259,6 +327,86 @@ public class SHACLComplianceResult {
         this.infModel.add(newInferredTriples);
     }
 
+    /**
+     * Adds the answer of the parent request from the counts of its subrequests,
+     * same as the policy construct of the Core procedure
+     * @param parentName name of the parent request
+     * @param counts the number of children, permitted and prohibited subrequests
+     * @param vocab vocabulary with the property names
+     */
+    public void addParentAnswer(String parentName, long[] counts, SAVEVocabulary vocab) {
+        Resource parent = infModel.createResource(ModelUtils.replacePrefixWithURI(parentName, infModel));
+        long total = counts[0];
+        long granted = counts[1];
+        long prohibited = counts[2];
+        parent.addLiteral(infModel.createProperty(ModelUtils.replacePrefixWithURI(vocab.nChildrenPropertyPrefixedName, infModel)),
+                infModel.createTypedLiteral(String.valueOf(total), XSDDatatype.XSDinteger));
+        parent.addLiteral(infModel.createProperty(ModelUtils.replacePrefixWithURI(vocab.nPermittedPropertyPrefixedName, infModel)),
+                infModel.createTypedLiteral(String.valueOf(granted), XSDDatatype.XSDinteger));
+        parent.addLiteral(infModel.createProperty(ModelUtils.replacePrefixWithURI(vocab.nProhibitedPropertyPrefixedName, infModel)),
+                infModel.createTypedLiteral(String.valueOf(prohibited), XSDDatatype.XSDinteger));
+        Answer answerPermitted = getAnswerPermitted(counts);
+        Answer answerProhibited = getAnswerProhibited(counts);
+        parent.addProperty(infModel.createProperty(ModelUtils.replacePrefixWithURI(vocab.answerPermittedPropertyPrefixedName, infModel)),
+                answerPermitted.getLabel());
+        parent.addProperty(infModel.createProperty(ModelUtils.replacePrefixWithURI(vocab.answerProhibitedPropertyPrefixedName, infModel)),
+                answerProhibited.getLabel());
+        addAnswer(parentName, answerPermitted, answerProhibited);
+    }
+
+    /**
+     * @param counts the number of children, permitted and prohibited subrequests
+     * @return the answerPermitted of the parent request, same as the policy construct of the Core procedure
+     */
+    public static Answer getAnswerPermitted(long[] counts) {
+        return counts[0] == counts[1] ? Answer.GRANTED : counts[1] > 0 ? Answer.PART_GRANTED : Answer.NOT_GRANTED;
+    }
+
+    /**
+     * @param counts the number of children, permitted and prohibited subrequests
+     * @return the answerProhibited of the parent request, same as the policy construct of the Core procedure
+     */
+    public static Answer getAnswerProhibited(long[] counts) {
+        return counts[0] == counts[2] ? Answer.PROHIBITED : counts[2] > 0 ? Answer.PART_PROHIBITED : Answer.NOT_PROHIBITED;
+    }
+
+    /**
+     * Records the answer of a request whose answer triples are already in the inferred triples
+     * (e.g. inferred by the policy construct of the Core procedure or by the SPARQL procedure)
+     * @param requestName name of the request
+     * @param answerPermitted the answer for the permissions
+     * @param answerProhibited the answer for the prohibitions
+     */
+    public void addAnswer(String requestName, Answer answerPermitted, Answer answerProhibited) {
+        answeredRequests.add(requestName);
+        answers.add(answerPermitted.ordinal() * 8 + answerProhibited.ordinal());
+    }
+
+    /**
+     * All the procedures record the answers of the checked requests (Core, SPARQL and native, single, batched
+     * or parallel), a request without answer triples (e.g. no policy construct for it) is not recorded
+     * @return the names of the answered requests, in order
+     */
+    public List<String> getAnsweredRequests() {
+        return answeredRequests;
+    }
+
+    /**
+     * @param i the index of the request in getAnsweredRequests
+     * @return the answerPermitted of the request
+     */
+    public Answer getAnswerPermitted(int i) {
+        return Answer.values()[answers.getInt(i) / 8];
+    }
+
+    /**
+     * @param i the index of the request in getAnsweredRequests
+     * @return the answerProhibited of the request
+     */
+    public Answer getAnswerProhibited(int i) {
+        return Answer.values()[answers.getInt(i) % 8];
+    }
+
     public Model getSubrequestsModel() {
         return subrequestsModel;
     }
@@ -272,21 +420,24 @@ public class SHACLComplianceResult {
     }
 
     public double getAvgTimePerRequest(){
-        return execTimePerRequest.stream().mapToDouble(a -> a).average().getAsDouble();
+        if(execTimePerRequest.isEmpty()){
+            throw new NoSuchElementException("No value present");
+        }
+        return execTimePerRequest.sum() / execTimePerRequest.size();
     }
 
     /**
      * Get or calculate average execution time of the request per number of subrequests (for the graph)
      * @return the graph series data
      */
-    public Map<Integer,Double> getAvgTimePerNumberOfSubrequests(){
+    public Map<Long,Double> getAvgTimePerNumberOfSubrequests(){
         if(avgTimePerNumberOfSubrequests == null) {
             if (execTimePerRequest.isEmpty() || nSubrequests.isEmpty()) {
                 return null;
             }
-            List<SimpleEntry<Integer, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
+            List<SimpleEntry<Long, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
                     .collect(Collectors.toList());
-            Map<Integer, Double> map = pairs.stream().collect(Collectors.groupingBy(SimpleEntry::getKey,
+            Map<Long, Double> map = pairs.stream().collect(Collectors.groupingBy(SimpleEntry::getKey,
                     Collectors.averagingDouble(SimpleEntry::getValue)));
             avgTimePerNumberOfSubrequests = map;
         }
@@ -297,14 +448,14 @@ public class SHACLComplianceResult {
      * Get or calculate count of examples per number of subrequests (for the graph)
      * @return the counts map
      */
-    public Map<Integer, Long> getCountPerNumberOfSubrequests(){
+    public Map<Long, Long> getCountPerNumberOfSubrequests(){
         if(countPerNumberOfSubrequests == null) {
             if (execTimePerRequest.isEmpty() || nSubrequests.isEmpty()) {
                 return null;
             }
-            List<SimpleEntry<Integer, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
+            List<SimpleEntry<Long, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
                     .collect(Collectors.toList());
-            Map<Integer, Long> map = pairs.stream().collect(Collectors.groupingBy(SimpleEntry::getKey,
+            Map<Long, Long> map = pairs.stream().collect(Collectors.groupingBy(SimpleEntry::getKey,
                     Collectors.counting()));
             countPerNumberOfSubrequests = map;
         }
@@ -320,12 +471,12 @@ public class SHACLComplianceResult {
             if (execTimePerRequest.isEmpty() || nSubrequests.isEmpty()) {
                 return null;
             }
-            List<SimpleEntry<Integer, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
+            List<SimpleEntry<Long, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
                     .collect(Collectors.toList());
 
             BucketHashMap map = new BucketHashMap();
-            for (SimpleEntry<Integer, Double> entry: pairs){
-                map.update(entry.getKey(), entry.getValue());
+            for (SimpleEntry<Long, Double> entry: pairs){
+                map.update(getBinKey(entry.getKey()), entry.getValue());
             }
 
             avgTimePerNumberOfSubrequestsBucketed = map.generate();
@@ -342,12 +493,12 @@ public class SHACLComplianceResult {
             if (execTimePerRequest.isEmpty() || nSubrequests.isEmpty()) {
                 return null;
             }
-            List<SimpleEntry<Integer, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
+            List<SimpleEntry<Long, Double>> pairs = Streams.zip(nSubrequests.stream(), execTimePerRequest.stream(), SimpleEntry::new)
                     .collect(Collectors.toList());
 
             BucketHashMap map = new BucketHashMap();
-            for (SimpleEntry<Integer, Double> entry: pairs){
-                map.update(entry.getKey(), entry.getValue());
+            for (SimpleEntry<Long, Double> entry: pairs){
+                map.update(getBinKey(entry.getKey()), entry.getValue());
             }
 
             countPerNumberOfSubrequestsBucketed = map.generateCounts();
@@ -432,14 +583,76 @@ public class SHACLComplianceResult {
         return countPerNumberOfRules;
     }
 
+    /**
+     * @return the latencies of the requests (in ns)
+     */
+    public LatencyHistogram getRequestLatency(){
+        return createHistogram(execTimePerRequest);
+    }
+
+    /**
+     * @return the latencies of the subrequests (in ns)
+     */
+    public LatencyHistogram getSubrequestLatency(){
+        return createHistogram(execTimePerSubrequest);
+    }
+
+    /**
+     * Latencies of the requests per number of subrequests, with the bins of BucketHashMap (but keeping every bin)
+     * @return the histogram (in ns) per bin, sorted by bin, empty if the number of subrequests is not known for every request
+     */
+    public Map<Integer, LatencyHistogram> getRequestLatencyPerNumberOfSubrequestsBucketed(){
+        Map<Integer, LatencyHistogram> histograms = new TreeMap<>();
+        if (nSubrequests.size() != execTimePerRequest.size()) {
+            return histograms;
+        }
+        BucketHashMap bins = new BucketHashMap();
+        for (int i = 0; i < nSubrequests.size(); i++) {
+            histograms.computeIfAbsent(bins.findKey(getBinKey(nSubrequests.getLong(i))), key -> new LatencyHistogram())
+                    .recordMillis(execTimePerRequest.getDouble(i));
+        }
+        return histograms;
+    }
+
+    private static LatencyHistogram createHistogram(DoubleColumn millis){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < millis.size(); i++) {
+            histogram.recordMillis(millis.getDouble(i));
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the summaries (count, percentiles, max in ns) of the request, subrequest and per bin latencies
+     */
+    public Map<String, Map<String, Number>> getLatencySummaries(){
+        Map<String, Map<String, Number>> summaries = new LinkedHashMap<>();
+        summaries.put("request", getRequestLatency().getSummary());
+        summaries.put("subrequest", getSubrequestLatency().getSummary());
+        for (Map.Entry<Integer, LatencyHistogram> bin : getRequestLatencyPerNumberOfSubrequestsBucketed().entrySet()) {
+            summaries.put("request_subrequests_" + bin.getKey(), bin.getValue().getSummary());
+        }
+        return summaries;
+    }
+
     public double getAvgTimePerSubrequest(){
         if(execTimePerSubrequest.isEmpty()){
             return 0.0;
         }
-        return execTimePerSubrequest.stream().mapToDouble(a -> a).average().getAsDouble();
+        return execTimePerSubrequest.sum() / execTimePerSubrequest.size();
     }
 
     public void writeToFile(String dirPath, String experimentName){
+        writeToFile(dirPath, experimentName, "ttl");
+    }
+
+    /**
+     * Writes the stats and the inferred triples, the triples are streamed (see ModelUtils.writeModelStreaming)
+     * @param dirPath the folder to write into
+     * @param experimentName the name of the files
+     * @param extension the format of the triples files: ttl, nt, ttl.gz or nt.gz
+     */
+    public void writeToFile(String dirPath, String experimentName, String extension){
         try {
 
             File fileStats = new File(dirPath);
@@ -454,7 +667,7 @@ public class SHACLComplianceResult {
                         + "\t#Processed: " + nProcessed + "\n";
             }
             stats += "\tMode: " + mode.name() + "\n"
-                    + "\tTriples inferred: " + infModel.listStatements().toList().size() + "\n";
+                    + "\tTriples inferred: " + infModel.size() + "\n";
             if(mode != Mode.IMDB_TEST_CONFLICT) {
                 stats += "\tTotal exec time: " + execTimeTotal + "\n"
                         + "\tAvg time per request: " + getAvgTimePerRequest() + "\n"
@@ -475,19 +688,19 @@ public class SHACLComplianceResult {
 
             } else if (mode == Mode.IMDB_ULTIMATE_REQUEST){
 
+            }
+            Map<String, Map<String, Number>> latencies = getLatencySummaries();
+            if (mode != Mode.IMDB_TEST_CONFLICT) {
+                stats += "\tLatency per request (ns): " + latencies.get("request") + "\n"
+                        + "\tLatency per subrequest (ns): " + latencies.get("subrequest") + "\n";
             }
             writerStats.write(stats);
             writerStats.close();
+            writeLatencies(latencies, dirPath + experimentName);
 
-            File fileTriples = new File(dirPath + experimentName + "_triples.ttl");
-            FileWriter writerTriples = new FileWriter(fileTriples);
-            writerTriples.write(ModelPrinter.get().print(infModel));
-            writerTriples.close();
+            ModelUtils.writeModelStreaming(infModel, dirPath + experimentName + "_triples." + extension);
             if(!subrequestsModel.isEmpty()) {
-                File fileSubrequests = new File(dirPath + experimentName + "_subrequests.ttl");
-                FileWriter writerSubrequests = new FileWriter(fileSubrequests);
-                writerSubrequests.write(ModelPrinter.get().print(subrequestsModel));
-                writerSubrequests.close();
+                ModelUtils.writeModelStreaming(subrequestsModel, dirPath + experimentName + "_subrequests." + extension);
             }
         } catch (IOException e) {
             System.out.println("Cannot write into " + dirPath + experimentName + ": " + e.toString());
@@ -495,29 +708,264 @@ public class SHACLComplianceResult {
 
     }
 
-    public static SHACLComplianceResult createTotalResultFromList(List<SHACLComplianceResult> resultsList, int nRequests, Model model,
+    /**
+     * Writes the latency summaries as CSV (one line per series, with the mode) and as JSON
+     * @param latencies the summaries from getLatencySummaries
+     * @param path the path of the files without the extension
+     * @throws IOException if the files cannot be written
+     */
+    private void writeLatencies(Map<String, Map<String, Number>> latencies, String path) throws IOException {
+        try (FileWriter writerCsv = new FileWriter(path + "_latency.csv")) {
+            writerCsv.write("mode,series," + String.join(",", latencies.get("request").keySet()) + "\n");
+            for (Map.Entry<String, Map<String, Number>> series : latencies.entrySet()) {
+                writerCsv.write(mode.name() + "," + series.getKey() + "," + series.getValue().values().stream()
+                        .map(String::valueOf).collect(Collectors.joining(",")) + "\n");
+            }
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("mode", mode.name());
+        json.put("unit", "ns");
+        json.put("latencies", latencies);
+        try (FileWriter writerJson = new FileWriter(path + "_latency.json")) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(json, writerJson);
+        }
+    }
+
+    /**
+     * Aggregates the results: the numbers are concatenated and the inferred triples are a union view over
+     * the large models of the results (e.g. other total results), only the small ones are copied.
+     * The total result takes the ownership of the inferred and subrequest models of the results: the large ones
+     * are not copied, so they must not be changed (or reused for other checks) afterwards, otherwise the total
+     * result changes too. The new triples added to the total result go to its own model only
+     * @param ownedResults the results to aggregate, their models are owned by the total result afterwards
+     * @param nRequests number of requests of the total result
+     * @param model model with the prefixes
+     * @param mode mode of the test
+     * @return the total result
+     */
+    public static SHACLComplianceResult createTotalResultFromList(List<SHACLComplianceResult> ownedResults, int nRequests, Model model,
                                                                    SHACLComplianceResult.Mode mode) {
         SHACLComplianceResult resultTotal = new SHACLComplianceResult(nRequests, mode, model);
-        resultTotal.setnRequestsPerBatch(resultsList.stream().map(SHACLComplianceResult::getnProcessed).collect(Collectors.toList()));
-        resultTotal.setnRulesPerPolicy(resultsList.stream().flatMap(r -> r.getnRulesPerPolicy().stream()).collect(Collectors.toList()));
-        resultTotal.setExecTimeTotalPerBatch(resultsList.stream().map(SHACLComplianceResult::getExecTimeTotal).collect(Collectors.toList()));
-        resultTotal.setnProcessed(resultsList.stream().mapToInt(SHACLComplianceResult::getnProcessed).sum());
-        resultTotal.setExecTimeTotal(resultsList.stream().mapToDouble(SHACLComplianceResult::getExecTimeTotal).sum());
-        resultTotal.setExecTimePerRequest(resultsList.stream().flatMap(r -> r.getExecTimePerRequest().stream()).collect(Collectors.toList()));
-        resultTotal.setExecTimePerSubrequest(resultsList.stream().flatMap(r -> r.getExecTimePerSubrequest().stream()).collect(Collectors.toList()));
-        resultTotal.setnSubrequests(resultsList.stream().flatMap(r -> r.getnSubrequests().stream()).collect(Collectors.toList()));
-        Model totalInfModel = JenaUtil.createMemoryModel();
-        for (SHACLComplianceResult res : resultsList) {
-            totalInfModel.add(res.getInfModel());
-        }
-        resultTotal.setInfModel(totalInfModel);
-
-        Model totalSubrequestsModel = JenaUtil.createMemoryModel();
-        for (SHACLComplianceResult res : resultsList) {
-            totalSubrequestsModel.add(res.getSubrequestsModel());
-        }
-        resultTotal.setSubrequestsModel(totalSubrequestsModel);
+        resultTotal.setExecTimeTotal(ownedResults.stream().mapToDouble(SHACLComplianceResult::getExecTimeTotal).sum());
+        resultTotal.setnProcessed(ownedResults.stream().mapToInt(SHACLComplianceResult::getnProcessed).sum());
+        List<Graph> infGraphs = new ArrayList<>();
+        List<Graph> subrequestsGraphs = new ArrayList<>();
+        for (SHACLComplianceResult res : ownedResults) {
+            resultTotal.nRequestsPerBatch.add(res.getnProcessed());
+            resultTotal.execTimeTotalPerBatch.add(res.getExecTimeTotal());
+            resultTotal.nRulesPerPolicy.addAll(res.nRulesPerPolicy);
+            resultTotal.execTimePerRequest.addAll(res.execTimePerRequest);
+            resultTotal.execTimePerSubrequest.addAll(res.execTimePerSubrequest);
+            resultTotal.nSubrequests.addAll(res.nSubrequests);
+            resultTotal.answeredRequests.addAll(res.answeredRequests);
+            resultTotal.answers.addAll(res.answers);
+            infGraphs.add(res.getInfModel().getGraph());
+            subrequestsGraphs.add(res.getSubrequestsModel().getGraph());
+        }
+        resultTotal.setInfModel(createSegmentsModel(resultTotal.getInfModel(), infGraphs));
+        resultTotal.setSubrequestsModel(createSegmentsModel(resultTotal.getSubrequestsModel(), subrequestsGraphs));
         return resultTotal;
     }
 
+    /**
+     * @param base the (empty) model to add the small segments and the new triples to, with the prefixes
+     * @param ownedSegments the graphs to read, the large ones are kept by reference (not copied) in the union,
+     *                      so the caller must not change them afterwards
+     * @return the union of the base model and the large segments, only the base model is written to
+     */
+    private static Model createSegmentsModel(Model base, List<Graph> ownedSegments) {
+        MultiUnion union = new MultiUnion();
+        union.addGraph(base.getGraph());
+        union.setBaseGraph(base.getGraph());
+        for (Graph segment : ownedSegments) {
+            // a graph has a large fixed cost, the triples of one request are cheaper to copy than to keep
+            if (segment.size() < SEGMENT_MIN_SIZE) {
+                GraphUtil.addInto(base.getGraph(), segment);
+            } else {
+                union.addGraph(segment);
+            }
+        }
+        return union.getSubGraphs().isEmpty() ? base : ModelFactory.createModelForGraph(union);
+    }
+
+    /**
+     * Growable column of doubles, a List view for the callers (boxed only when read through the List methods)
+     */
+    private static final class DoubleColumn extends AbstractList<Double> implements RandomAccess {
+        private double[] values = new double[16];
+        private int size;
+
+        DoubleColumn() {
+        }
+
+        DoubleColumn(Collection<Double> values) {
+            addAll(values);
+        }
+
+        void add(double value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(DoubleColumn column) {
+            if (size + column.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size * 2, size + column.size));
+            }
+            System.arraycopy(column.values, 0, values, size, column.size);
+            size += column.size;
+        }
+
+        double getDouble(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return values[index];
+        }
+
+        double sum() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public Double get(int index) {
+            return getDouble(index);
+        }
+
+        @Override
+        public void add(int index, Double value) {
+            if (index != size) {
+                throw new UnsupportedOperationException("Values can only be appended");
+            }
+            add(value.doubleValue());
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * @param nSubrequests the number of subrequests of a request
+     * @return the key to look the bin up with, the numbers beyond the int range fall out of every bin
+     */
+    private static int getBinKey(long nSubrequests) {
+        return (int) Math.min(nSubrequests, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Growable column of ints, a List view for the callers (boxed only when read through the List methods)
+     */
+    private static final class IntColumn extends AbstractList<Integer> implements RandomAccess {
+        private int[] values = new int[16];
+        private int size;
+
+        IntColumn() {
+        }
+
+        IntColumn(Collection<Integer> values) {
+            addAll(values);
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(IntColumn column) {
+            if (size + column.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size * 2, size + column.size));
+            }
+            System.arraycopy(column.values, 0, values, size, column.size);
+            size += column.size;
+        }
+
+        int getInt(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return values[index];
+        }
+
+        @Override
+        public Integer get(int index) {
+            return getInt(index);
+        }
+
+        @Override
+        public void add(int index, Integer value) {
+            if (index != size) {
+                throw new UnsupportedOperationException("Values can only be appended");
+            }
+            add(value.intValue());
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Growable column of longs, a List view for the callers (boxed only when read through the List methods)
+     */
+    private static final class LongColumn extends AbstractList<Long> implements RandomAccess {
+        private long[] values = new long[16];
+        private int size;
+
+        LongColumn() {
+        }
+
+        LongColumn(Collection<Long> values) {
+            addAll(values);
+        }
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LongColumn column) {
+            if (size + column.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size * 2, size + column.size));
+            }
+            System.arraycopy(column.values, 0, values, size, column.size);
+            size += column.size;
+        }
+
+        long getLong(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return values[index];
+        }
+
+        @Override
+        public Long get(int index) {
+            return getLong(index);
+        }
+
+        @Override
+        public void add(int index, Long value) {
+            if (index != size) {
+                throw new UnsupportedOperationException("Values can only be appended");
+            }
+            add(value.longValue());
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
@@ -1,16 +1,22 @@
 package org.example;
 
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.vocabulary.RDF;
 import org.topbraid.jenax.util.JenaUtil;
-import org.topbraid.shacl.rules.RuleUtil;
+import org.topbraid.shacl.vocabulary.SH;
 
-import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Funtional class for preparing the requests and running inference
+ * Funtional class for preparing the requests and running inference.
+ * One runner is not thread-safe (the requests are materialized in its own inference model),
+ * use checkNormalizedSAVERulesParallel to check several requests at once
  */
 public class SHACLInferenceRunner {
 
@@ -18,28 +24,180 @@ public class SHACLInferenceRunner {
     private Model saveModel;
     private Model infModel;
     private Model testModel;
+    private SHACLCompiledPolicy compiledPolicy;
     private SAVEVocabulary vocab;
+    private SAVETermDictionary dictionary;
+
+    /**
+     * the stage timers of this runner (and its copies), disabled by default
+     */
+    private SAVEMetrics metrics = SAVEMetrics.DISABLED;
+
+    /**
+     * policy tag of the recorded timers
+     */
+    private String metricsPolicy = SAVEMetrics.NONE;
+
+    /**
+     * index of the rules of the policy to find the candidate rules of a request, null to run all the rules
+     */
+    private SAVEComplianceEngine ruleIndex;
+
+    /**
+     * prefixed names of the SAVE rules run for the current request, null for all
+     */
+    private Collection<String> candidateRules;
 
     /**
      * The class needs different models
-     * @param unionModel full model (SAVE, policy, etc.)
+     * @param unionModel full model (SAVE, policy, etc.), only read - the requests are layered over it during inference
      * @param saveModel SAVE ontology
-     * @param testModel shapes model only
+     * @param testModel shapes model only, compiled once for all the inference runs; if it was translated with
+     *                  SHACLPolicyTranslator.setTypeClosure, the type closure is materialized and layered over the
+     *                  union model (unless the union model already has it)
      */
     public SHACLInferenceRunner(Model unionModel, Model saveModel, Model testModel) {
-        this.unionModel = unionModel;
         this.saveModel = saveModel;
         this.testModel = testModel;
+        this.compiledPolicy = new SHACLCompiledPolicy(testModel);
         this.vocab = new SAVEVocabulary(unionModel);
+        this.unionModel = attachTypeClosure(unionModel, testModel);
+        createInfModel();
+        this.dictionary = new SAVETermDictionary(infModel, saveModel, vocab.savePrefix);
+    }
+
+    /**
+     * Creates a runner for one parallel task (or one benchmark iteration): the read-only models and the compiled
+     * policy are shared, the inference model is its own
+     * @param runner the runner to share the models with
+     */
+    public SHACLInferenceRunner(SHACLInferenceRunner runner) {
+        this.unionModel = runner.unionModel;
+        this.saveModel = runner.saveModel;
+        this.testModel = runner.testModel;
+        this.compiledPolicy = runner.compiledPolicy;
+        this.vocab = runner.vocab;
+        this.dictionary = runner.dictionary;
+        this.metrics = runner.metrics;
+        this.metricsPolicy = runner.metricsPolicy;
+        this.ruleIndex = runner.ruleIndex;
+        this.candidateRules = runner.candidateRules;
         createInfModel();
     }
 
+    /**
+     * Indexes the rules of the policy (as SAVEComplianceEngine does), then every request is checked only against the
+     * rules it may match, the other SAVE rules are skipped by the compiled policy. The answers are the same.
+     * The index is shared with the copies of the runner
+     * @param policy the SAVE policy the shapes were translated from
+     * @return whether the rules were indexed, false if the shapes have no SAVE rules or rules not in the policy
+     * (e.g. the combined SPARQL translation, or another policy)
+     */
+    public boolean indexRules(SAVEPolicy policy) {
+        Set<String> policyRules = new HashSet<>();
+        for (List<SAVERule> rules : Arrays.asList(policy.getPermissions(), policy.getProhibitions(),
+                policy.getDispensations())) {
+            for (SAVERule rule : rules) {
+                policyRules.add(rule.getName());
+            }
+        }
+        Set<String> shapeRules = compiledPolicy.getRuleNames();
+        if (shapeRules.isEmpty() || !policyRules.containsAll(shapeRules)) {
+            return false;
+        }
+        this.ruleIndex = new SAVEComplianceEngine(policy, unionModel, saveModel);
+        return true;
+    }
+
+    /**
+     * @param rulesNormalized the requests to check together
+     * @param SPARQL whether the requests are checked with SPARQL procedure, Core otherwise
+     * @return the prefixed names of the rules the requests may match, null for all the rules (no index)
+     */
+    private Collection<String> findCandidateRules(List<SAVERuleNormalized> rulesNormalized, boolean SPARQL) {
+        if (ruleIndex == null) {
+            return null;
+        }
+        Set<String> candidates = new HashSet<>();
+        for (SAVERuleNormalized ruleNormalized : rulesNormalized) {
+            candidates.addAll(ruleIndex.getCandidateRules(ruleNormalized, SPARQL));
+        }
+        return candidates;
+    }
+
+    /**
+     * @param candidateRules the SAVE rules to run, null for all
+     * @return a copy of the runner for one batch of the current request
+     */
+    private SHACLInferenceRunner copyForBatch(Collection<String> candidateRules) {
+        SHACLInferenceRunner runner = new SHACLInferenceRunner(this);
+        runner.candidateRules = candidateRules;
+        return runner;
+    }
+
+    /**
+     * Layers the type closure (SAVEClassHierarchy.createTypeClosureModel) over the union model if the shapes look
+     * the classes of the items up with the typeClosure property and the union model has no closure yet.
+     * The closure is a snapshot of the union model: the items typed only in the request data have no closure,
+     * so such a policy does not match them
+     * @param unionModel full model, only read
+     * @param testModel shapes model
+     * @return the union model, with the closure if the shapes need it
+     */
+    private Model attachTypeClosure(Model unionModel, Model testModel) {
+        String typeClosureURI = ModelUtils.replacePrefixWithURI(vocab.typeClosurePropertyPrefixedName, unionModel);
+        if (!usesTypeClosure(testModel, typeClosureURI)
+                || unionModel.contains(null, ResourceFactory.createProperty(typeClosureURI), (RDFNode) null)) {
+            return unionModel;
+        }
+        Model closure = new SAVEClassHierarchy(unionModel).createTypeClosureModel(typeClosureURI);
+        return ModelUtils.createOverlayModel(closure, unionModel);
+    }
+
+    /**
+     * @param testModel shapes model
+     * @param typeClosureURI the URI of the typeClosure property
+     * @return whether one of the SPARQL queries of the shapes uses the typeClosure property
+     */
+    private boolean usesTypeClosure(Model testModel, String typeClosureURI) {
+        for (Property property : Arrays.asList(SH.select, SH.construct)) {
+            for (RDFNode query : testModel.listObjectsOfProperty(property).toList()) {
+                if (query.isLiteral() && (query.asLiteral().getLexicalForm().contains(vocab.typeClosurePropertyPrefixedName)
+                        || query.asLiteral().getLexicalForm().contains(typeClosureURI))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the latencies of the stages of this runner (and of its copies)
+     * @param metrics the stage timers of the application
+     * @param metricsPolicy the policy to tag the timers with
+     */
+    public void setMetrics(SAVEMetrics metrics, String metricsPolicy) {
+        this.metrics = metrics;
+        this.metricsPolicy = metricsPolicy;
+    }
+
+    /**
+     * Profiles the rules of the compiled policy, shared with the copies of the runner
+     * @param profiler the profiler of the policy, null to stop profiling
+     */
+    public void setRuleProfiler(SHACLRuleProfiler profiler) {
+        compiledPolicy.setProfiler(profiler);
+    }
+
     /**
      * Creates new empty inference model
      */
     private void createInfModel(){
         if (infModel != null) {
+            long start = System.nanoTime();
             infModel.removeAll();
+            // only the Core procedure resets the model
+            metrics.recordSince(SAVEMetrics.UNION_MODEL, metricsPolicy, SAVEMetrics.CORE, start);
         } else {
             infModel = createSingleModel();
         }
@@ -71,7 +229,9 @@ public class SHACLInferenceRunner {
      * @param mode mode of the test for the result
      * @param verbose whether to output intermediate logs
      * @return the result object with stats and inferred triples
-     * @throws Exception if the number of subrequests is bigger than the batches can handle and stopIfTooManySubrequests == true
+     * @throws Exception if the number of subrequests is bigger than the batches can handle and stopIfTooManySubrequests == true,
+     * otherwise only the subrequests of the first batches are checked (use checkNormalizedSAVERuleCoreStreaming to check
+     * all of them)
      */
     public SHACLComplianceResult checkNormalizedSAVERuleCore(SAVERuleNormalized ruleNormalized,
                                                                 boolean stopIfTooManySubrequests,
@@ -80,14 +240,15 @@ public class SHACLInferenceRunner {
         SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
         int i = 0;
         List<String> children = new ArrayList<>();
-        List<Long> execTimes = new ArrayList<>();
+        List<Double> execTimes = new ArrayList<>();
         int nBatches = 10;
         int batchSize = 1000;
-        if(stopIfTooManySubrequests && ruleNormalized.getCombinations().size() > nBatches * batchSize + 1){
+        if(stopIfTooManySubrequests && ruleNormalized.getCombinations().count() > nBatches * batchSize + 1){
             throw new Exception(String.format("Too many subrequests - %d, this method could only do %d, try the SPARQL version instead!",
-                    ruleNormalized.getCombinations().size(), nBatches*batchSize));
+                    ruleNormalized.getCombinations().count(), nBatches*batchSize));
         }
-        result.addnSubrequests(ruleNormalized.getCombinations().size());
+        result.addnSubrequests(ruleNormalized.getCombinations().count());
+        candidateRules = findCandidateRules(Collections.singletonList(ruleNormalized), false);
         for (List<String> comb: ruleNormalized.getCombinations()){
             String subRequestName = addChildSAVERuleToModel(ruleNormalized.getAttributes(), comb, ruleNormalized.getName(), ruleNormalized.getType(),
                     i, ruleNormalized.getName(), null);
@@ -97,7 +258,7 @@ public class SHACLInferenceRunner {
                 //add parent to the new batch
                 addParentSAVERuleToModel(ruleNormalized, children, null);
                 //run test inference on the batch
-                execTimes.add(runInferenceOnBatch(i, result, null, true, verbose));
+                execTimes.add(runInferenceOnBatch(i, result, null, true, SAVEMetrics.CORE, verbose));
                 OptionalDouble elapsed = execTimes.stream().mapToDouble(a -> a).average();
                 double sum = execTimes.stream().mapToDouble(a -> a).sum();
                 if (verbose) {
@@ -117,6 +278,7 @@ public class SHACLInferenceRunner {
             }
             i++;
         }
+        recordCoreAnswer(result, result.getInfModel(), ruleNormalized.getName());
         double totalTime = execTimes.stream().mapToDouble(a -> a).sum();
         result.setnProcessed(1);
         result.addExecTimePerRequest(totalTime);
@@ -124,6 +286,319 @@ public class SHACLInferenceRunner {
         return result;
     }
 
+    /**
+     * Performs compliance checking on one normalized SAVE request in a Core way, the batches of subrequests are
+     * materialized and checked on separate workers and their counts are merged into the answer of the parent request.
+     * All the subrequests are processed, there is no limit on the number of batches
+     * @param ruleNormalized the request (normalized)
+     * @param batchSize the number of subrequests per batch (per worker task)
+     * @param mode mode of the test for the result
+     * @param executor the executor to run the batches on
+     * @param verbose whether to output intermediate logs
+     * @return the result with stats and inferred triples, the total time is the wall time of the whole check
+     * @throws InterruptedException if interrupted while waiting for the batches
+     * @throws ExecutionException if the check of a batch failed, the other batches are cancelled
+     */
+    public SHACLComplianceResult checkNormalizedSAVERuleCoreParallel(SAVERuleNormalized ruleNormalized,
+                                                                     int batchSize,
+                                                                     SHACLComplianceResult.Mode mode,
+                                                                     ExecutorService executor,
+                                                                     boolean verbose) throws InterruptedException, ExecutionException {
+        SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
+        SAVECombinations combinations = ruleNormalized.getCombinations();
+        result.addnSubrequests(combinations.size());
+        long start = System.nanoTime();
+        Collection<String> candidates = findCandidateRules(Collections.singletonList(ruleNormalized), false);
+        List<Future<SHACLComplianceResult>> futures = new ArrayList<>();
+        for (SAVECombinations batch: combinations.split(batchSize)){
+            futures.add(executor.submit(() -> copyForBatch(candidates)
+                    .checkSubrequestBatch(ruleNormalized, batch, mode, verbose)));
+        }
+        long[] counts = new long[3];
+        boolean answered = false;
+        try {
+            for (Future<SHACLComplianceResult> future: futures){
+                answered |= mergeBatchResult(result, future.get(), ruleNormalized.getName(), counts, true);
+            }
+        } finally {
+            // the remaining batches are not needed once one failed or the caller was interrupted
+            for (Future<SHACLComplianceResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (answered) {
+            result.addParentAnswer(ruleNormalized.getName(), counts, vocab);
+        }
+        double totalTime = (System.nanoTime() - start) / 1e6;
+        if (verbose) {
+            System.out.println("Full time for " + combinations.size() + " subrequests in " + futures.size()
+                    + " parallel batches is " + totalTime + " ms");
+        }
+        result.setnProcessed(1);
+        result.addExecTimePerRequest(totalTime);
+        result.setExecTimeTotal(totalTime);
+        return result;
+    }
+
+    /**
+     * Performs compliance checking on one normalized SAVE request in a Core way with bounded memory.
+     * The combinations are taken range by range, at most window batches are checked at once and only the counts of the parent
+     * request are kept from each batch, so the memory does not depend on the number of subrequests.
+     * The result has only the triples inferred for the parent request and the average time per subrequest
+     * @param ruleNormalized the request (normalized)
+     * @param batchSize the number of subrequests per batch (per worker task)
+     * @param window the maximal number of batches being checked at the same time
+     * @param mode mode of the test for the result
+     * @param executor the executor to run the batches on
+     * @param verbose whether to output intermediate logs
+     * @return the result with stats and the parent answer, the total time is the wall time of the whole check
+     * @throws InterruptedException if interrupted while waiting for the batches
+     * @throws ExecutionException if the check of a batch failed, the other batches are cancelled
+     */
+    public SHACLComplianceResult checkNormalizedSAVERuleCoreStreaming(SAVERuleNormalized ruleNormalized,
+                                                                      int batchSize,
+                                                                      int window,
+                                                                      SHACLComplianceResult.Mode mode,
+                                                                      ExecutorService executor,
+                                                                      boolean verbose) throws InterruptedException, ExecutionException {
+        SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
+        long start = System.nanoTime();
+        Deque<Future<SHACLComplianceResult>> running = new ArrayDeque<>();
+        long[] counts = new long[3];
+        boolean answered = false;
+        SAVECombinations combinations = ruleNormalized.getCombinations();
+        long nSubrequests = combinations.count();
+        long next = 0;
+        double subrequestsTime = 0;
+        Collection<String> candidates = findCandidateRules(Collections.singletonList(ruleNormalized), false);
+        try {
+            while (next < nSubrequests || !running.isEmpty()) {
+                if (next < nSubrequests && running.size() < window) {
+                    SAVECombinations batch = combinations.range(next, Math.min(next + batchSize, nSubrequests));
+                    next += batch.count();
+                    running.add(executor.submit(() -> copyForBatch(candidates)
+                            .checkSubrequestBatch(ruleNormalized, batch, mode, false)));
+                    continue;
+                }
+                SHACLComplianceResult batchResult = running.poll().get();
+                answered |= mergeBatchResult(result, batchResult, ruleNormalized.getName(), counts, false);
+                subrequestsTime += batchResult.getExecTimePerSubrequest().stream().mapToDouble(a -> a).sum();
+                if (verbose) {
+                    System.out.println("Checked " + counts[0] + " subrequests so far, " + counts[1] + " permitted, "
+                            + counts[2] + " prohibited");
+                }
+            }
+        } finally {
+            // the batches in the window are not needed once one failed or the caller was interrupted
+            for (Future<SHACLComplianceResult> future : running) {
+                future.cancel(true);
+            }
+        }
+        if (answered) {
+            result.addParentAnswer(ruleNormalized.getName(), counts, vocab);
+        }
+        double totalTime = (System.nanoTime() - start) / 1e6;
+        if (verbose) {
+            System.out.println("Full time for " + nSubrequests + " subrequests (streaming) is " + totalTime + " ms");
+        }
+        result.addnSubrequests(nSubrequests);
+        if (nSubrequests > 0) {
+            result.addExecTimePerSubrequest(subrequestsTime / nSubrequests);
+        }
+        result.setnProcessed(1);
+        result.addExecTimePerRequest(totalTime);
+        result.setExecTimeTotal(totalTime);
+        return result;
+    }
+
+    /**
+     * Materializes and checks one batch of subrequests together with the parent request (only with this batch as children)
+     * @param ruleNormalized the parent request (normalized)
+     * @param combinations the range of combinations of the batch
+     * @param mode mode of the test for the result
+     * @param verbose whether to keep the subrequests, the materialized batch is added once after the batch inference
+     * @return the result of the batch with the subrequest answers and the partial answer of the parent
+     */
+    private SHACLComplianceResult checkSubrequestBatch(SAVERuleNormalized ruleNormalized, SAVECombinations combinations,
+                                                       SHACLComplianceResult.Mode mode, boolean verbose) {
+        SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
+        List<String> children = new ArrayList<>();
+        long i = combinations.getFrom();
+        for (List<String> comb: combinations){
+            String subRequestName = addChildSAVERuleToModel(ruleNormalized.getAttributes(), comb,
+                    ruleNormalized.getName(), ruleNormalized.getType(), i, ruleNormalized.getName(), null);
+            children.add(subRequestName);
+            runInferenceOnSingleRequest(subRequestName, result, null, true, false, false);
+            i++;
+        }
+        addParentSAVERuleToModel(ruleNormalized, children, null);
+        result.addExecTimePerRequest(runInferenceOnBatch(combinations.getFrom(), result, null, true, SAVEMetrics.CORE, verbose));
+        return result;
+    }
+
+    /**
+     * Records the answer of the parent request inferred by the policy construct of the Core procedure.
+     * The counts are summed up over the batches, so a request checked in several batches gets one answer
+     * for all its subrequests
+     * @param result the result to record the answer in
+     * @param model the inferred triples with the counts of the parent request
+     * @param parentName name of the parent request
+     */
+    private void recordCoreAnswer(SHACLComplianceResult result, Model model, String parentName) {
+        Resource parent = model.createResource(replacePrefixWithURI(parentName));
+        List<Property> countProperties = Arrays.asList(
+                model.createProperty(replacePrefixWithURI(vocab.nChildrenPropertyPrefixedName)),
+                model.createProperty(replacePrefixWithURI(vocab.nPermittedPropertyPrefixedName)),
+                model.createProperty(replacePrefixWithURI(vocab.nProhibitedPropertyPrefixedName)));
+        long[] counts = new long[3];
+        boolean answered = false;
+        for (int j = 0; j < countProperties.size(); j++) {
+            for (Statement stmt: parent.listProperties(countProperties.get(j)).toList()) {
+                counts[j] += stmt.getLong();
+                answered = true;
+            }
+        }
+        if (answered) {
+            result.addAnswer(parentName, SHACLComplianceResult.getAnswerPermitted(counts),
+                    SHACLComplianceResult.getAnswerProhibited(counts));
+        }
+    }
+
+    /**
+     * Records the answer of a request inferred by the SPARQL procedure (the save:result of the request)
+     * @param result the result to record the answer in, with the inferred triples
+     * @param requestName name of the request
+     */
+    private void recordSPARQLAnswer(SHACLComplianceResult result, String requestName) {
+        Model model = result.getInfModel();
+        Resource request = model.createResource(replacePrefixWithURI(requestName + "_opt"));
+        Property answerPermitted = model.createProperty(replacePrefixWithURI(vocab.answerPermittedPropertyPrefixedName));
+        Property answerProhibited = model.createProperty(replacePrefixWithURI(vocab.answerProhibitedPropertyPrefixedName));
+        for (Statement stmt: request.listProperties(model.createProperty(
+                replacePrefixWithURI(vocab.resultPropertyPrefixedName))).toList()) {
+            Statement permitted = stmt.getResource().getProperty(answerPermitted);
+            Statement prohibited = stmt.getResource().getProperty(answerProhibited);
+            if (permitted != null && prohibited != null) {
+                result.addAnswer(requestName, SHACLComplianceResult.Answer.fromLabel(permitted.getString()),
+                        SHACLComplianceResult.Answer.fromLabel(prohibited.getString()));
+            }
+        }
+    }
+
+    /**
+     * Adds the result of one batch to the result of the request. The partial counts of the parent request are
+     * summed up in counts instead of being copied
+     * @param result the result of the whole request
+     * @param batchResult the result of the batch
+     * @param parentName name of the parent request
+     * @param counts the number of children, permitted and prohibited subrequests so far
+     * @param keepSubrequests whether to keep the subrequests and their inferred triples, only the triples
+     *                        of the parent request are kept otherwise
+     * @return whether the batch had the answer for the parent request
+     */
+    private boolean mergeBatchResult(SHACLComplianceResult result, SHACLComplianceResult batchResult, String parentName,
+                                     long[] counts, boolean keepSubrequests) {
+        Model batchModel = batchResult.getInfModel();
+        Resource parent = batchModel.createResource(replacePrefixWithURI(parentName));
+        List<Property> countProperties = Arrays.asList(
+                batchModel.createProperty(replacePrefixWithURI(vocab.nChildrenPropertyPrefixedName)),
+                batchModel.createProperty(replacePrefixWithURI(vocab.nPermittedPropertyPrefixedName)),
+                batchModel.createProperty(replacePrefixWithURI(vocab.nProhibitedPropertyPrefixedName)));
+        List<Property> answerProperties = Arrays.asList(
+                batchModel.createProperty(replacePrefixWithURI(vocab.answerPermittedPropertyPrefixedName)),
+                batchModel.createProperty(replacePrefixWithURI(vocab.answerProhibitedPropertyPrefixedName)));
+        boolean answered = false;
+        Model triples = JenaUtil.createMemoryModel();
+        for (Statement stmt: batchModel.listStatements().toList()){
+            if (stmt.getSubject().equals(parent) && countProperties.contains(stmt.getPredicate())) {
+                counts[countProperties.indexOf(stmt.getPredicate())] += stmt.getLong();
+                answered = true;
+            } else if (stmt.getSubject().equals(parent) ? !answerProperties.contains(stmt.getPredicate()) : keepSubrequests) {
+                triples.add(stmt);
+            }
+        }
+        result.addInferredTriples(triples);
+        if (keepSubrequests) {
+            result.addSubrequests(batchResult.getSubrequestsModel());
+            result.getExecTimePerSubrequest().addAll(batchResult.getExecTimePerSubrequest());
+        }
+        return answered;
+    }
+
+    /**
+     * Performs compliance checking of several requests in parallel, each request is checked separately
+     * (as with checkNormalizedSAVERuleCore or checkNormalizedSAVERuleSPARQL) with its own inference model
+     * @param rulesNormalized the requests (normalized)
+     * @param SPARQL whether to use SPARQL procedure, Core otherwise
+     * @param stopIfTooManySubrequests for Core procedure, stop if the amount of subrequests > nBatches*batchSize
+     * @param mode mode of the test for the result
+     * @param executor the executor to run the checks on
+     * @param verbose whether to output the logs
+     * @return the results in the same order as the requests
+     * @throws InterruptedException if interrupted while waiting for the results
+     * @throws ExecutionException if the check of a request failed, the other checks are cancelled
+     */
+    public List<SHACLComplianceResult> checkNormalizedSAVERulesParallel(List<SAVERuleNormalized> rulesNormalized,
+                                                                        boolean SPARQL,
+                                                                        boolean stopIfTooManySubrequests,
+                                                                        SHACLComplianceResult.Mode mode,
+                                                                        ExecutorService executor,
+                                                                        boolean verbose)
+            throws InterruptedException, ExecutionException {
+        List<Future<SHACLComplianceResult>> futures = new ArrayList<>();
+        for (SAVERuleNormalized ruleNormalized: rulesNormalized){
+            futures.add(executor.submit(() -> {
+                SHACLInferenceRunner runner = new SHACLInferenceRunner(this);
+                if (SPARQL) {
+                    return runner.checkNormalizedSAVERuleSPARQL(ruleNormalized, mode, verbose);
+                }
+                return runner.checkNormalizedSAVERuleCore(ruleNormalized, stopIfTooManySubrequests, mode, verbose);
+            }));
+        }
+        List<SHACLComplianceResult> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++){
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    throw new ExecutionException("Error appeared during compliance check of request "
+                            + rulesNormalized.get(i).getName(), e.getCause());
+                }
+            }
+        } finally {
+            // the remaining checks are not needed once one failed or the caller was interrupted
+            for (Future<SHACLComplianceResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Performs compliance checking of several requests in parallel on a pool with one thread per core
+     * @param rulesNormalized the requests (normalized)
+     * @param SPARQL whether to use SPARQL procedure, Core otherwise
+     * @param stopIfTooManySubrequests for Core procedure, stop if the amount of subrequests > nBatches*batchSize
+     * @param mode mode of the test for the result
+     * @param verbose whether to output the logs
+     * @return the results in the same order as the requests
+     * @throws InterruptedException if interrupted while waiting for the results
+     * @throws ExecutionException if the check of a request failed, the other checks are cancelled
+     */
+    public List<SHACLComplianceResult> checkNormalizedSAVERulesParallel(List<SAVERuleNormalized> rulesNormalized,
+                                                                        boolean SPARQL,
+                                                                        boolean stopIfTooManySubrequests,
+                                                                        SHACLComplianceResult.Mode mode,
+                                                                        boolean verbose)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return checkNormalizedSAVERulesParallel(rulesNormalized, SPARQL, stopIfTooManySubrequests, mode, executor, verbose);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     /**
      * Performs compliance checking for a batch of atomic requests using Core procedure
      * @param rulesNormalized batch of requests (atomic, in normalized format)
@@ -135,22 +610,30 @@ public class SHACLInferenceRunner {
                                                                             SHACLComplianceResult.Mode mode, boolean verbose) {
         SHACLComplianceResult result = new SHACLComplianceResult(rulesNormalized.size(), mode, unionModel);
         Model singleModel = createSingleModel();
+        candidateRules = findCandidateRules(rulesNormalized, false);
         for (SAVERuleNormalized ruleNormalized: rulesNormalized){
             if(ruleNormalized.getCombinations().size() > 1){
                 throw new IllegalArgumentException(String.format("%s: this rule is not atomic", ruleNormalized.getName()));
             }
             result.addnSubrequests(1);
+            long start = System.nanoTime();
             singleModel.removeAll();
+            metrics.recordSince(SAVEMetrics.UNION_MODEL, metricsPolicy, SAVEMetrics.CORE, start);
             List<String> comb = ruleNormalized.getCombinations().get(0);
             String subRequestName = addChildSAVERuleToModel(ruleNormalized.getAttributes(), comb, ruleNormalized.getName(), ruleNormalized.getType(),
                     0, ruleNormalized.getName(), singleModel);
             runInferenceOnSingleRequest(subRequestName, result, singleModel, true, false, verbose);
             //add parent to the new batch
             addParentSAVERuleToModel(ruleNormalized, Collections.singletonList(subRequestName), singleModel);
-            result.addExecTimePerRequest(runInferenceOnBatch(0, result, singleModel, false, verbose));
-
+            // the inferred triples are only read for the answer, they are not kept in the result
+            SHACLComplianceResult requestResult = new SHACLComplianceResult(1, mode, unionModel);
+            result.addExecTimePerRequest(runInferenceOnBatch(0, requestResult, singleModel, true, SAVEMetrics.CORE, verbose));
+            if (verbose) {
+                result.addSubrequests(requestResult.getSubrequestsModel());
+            }
+            recordCoreAnswer(result, requestResult.getInfModel(), ruleNormalized.getName());
         }
-        result.setExecTimeTotal(runInferenceOnBatch(0, result, null, true, verbose));
+        result.setExecTimeTotal(runInferenceOnBatch(0, result, null, true, SAVEMetrics.CORE, verbose));
         result.setnProcessed(rulesNormalized.size());
         return result;
     }
@@ -166,6 +649,7 @@ public class SHACLInferenceRunner {
                                                                               SHACLComplianceResult.Mode mode,
                                                                                boolean verbose) {
         SHACLComplianceResult result = new SHACLComplianceResult(rulesNormalized.size(), mode, unionModel);
+        candidateRules = findCandidateRules(rulesNormalized, true);
         for (SAVERuleNormalized ruleNormalized: rulesNormalized){
             if(ruleNormalized.getCombinations().size() > 1){
                 throw new IllegalArgumentException(String.format("%s: this rule is not atomic", ruleNormalized.getName()));
@@ -179,12 +663,26 @@ public class SHACLInferenceRunner {
             }
 
         }
-        result.setExecTimeTotal(runInferenceOnBatch(0, result, null, true, verbose));
+        result.setExecTimeTotal(runInferenceOnBatch(0, result, null, true, SAVEMetrics.SPARQL, verbose));
+        for (SAVERuleNormalized ruleNormalized: rulesNormalized){
+            recordSPARQLAnswer(result, ruleNormalized.getName());
+        }
         result.setnProcessed(rulesNormalized.size());
         return result;
     }
 
-    private long runInferenceOnBatch(int i, SHACLComplianceResult result, Model model, boolean infer, boolean verbose) {
+    /**
+     * Runs the rules on a whole model (the inference model if null)
+     * @param i index of the batch
+     * @param result result object to add triples to
+     * @param model model to check against
+     * @param infer whether to add triples to inference model
+     * @param procedure SAVEMetrics.CORE or SAVEMetrics.SPARQL, the procedure tag of the timers
+     * @param verbose whether to keep the subrequests
+     * @return the time of the rule execution in ms
+     */
+    private double runInferenceOnBatch(long i, SHACLComplianceResult result, Model model, boolean infer,
+                                       String procedure, boolean verbose) {
         if(model == null){
             model = infModel;
         }
@@ -192,20 +690,20 @@ public class SHACLInferenceRunner {
             //add subrequests for explainability
             result.addSubrequests(model);
         }
-        model.add(unionModel);
-        Instant start = Instant.now();
-        Model triples = RuleUtil.executeRules(model, testModel, null, null);
-        Instant finish = Instant.now();
-        long timeElapsed = Duration.between(start, finish).toMillis();
+        long overlayStart = System.nanoTime();
+        Model dataModel = ModelUtils.createOverlayModel(model, unionModel);
+        metrics.recordSince(SAVEMetrics.UNION_MODEL, metricsPolicy, procedure, overlayStart);
+        long start = System.nanoTime();
+        Model triples = compiledPolicy.executeRules(dataModel, candidateRules);
+        metrics.recordSince(SAVEMetrics.RULE_EXECUTION, metricsPolicy, procedure, start);
+        double timeElapsed = (System.nanoTime() - start) / 1e6;
         if (infer) {
             result.addInferredTriples(triples);
         }
-        final List<Statement> statements = triples.listStatements().toList();
 //        if (statements != null && !statements.isEmpty()){
 //            System.out.println("Batch "+ i + "\tInferred " + statements.size() +
 //                    " triples in " + timeElapsed + " ms");
 //        }
-        model.remove(unionModel);
 //        triples.setNsPrefixes(infModel.getNsPrefixMap());
 //        System.out.println(ModelPrinter.get().print(result));
         return timeElapsed;
@@ -229,14 +727,17 @@ public class SHACLInferenceRunner {
         if(verbose){
             result.addSubrequests(model);
         }
-        model.add(unionModel);
-        RDFNode focusNode = model.getRDFNode(model.getResource(replacePrefixWithURI(name)).asNode());
+        String procedure = subrequest ? SAVEMetrics.CORE : SAVEMetrics.SPARQL;
+        long overlayStart = System.nanoTime();
+        Model dataModel = ModelUtils.createOverlayModel(model, unionModel);
+        metrics.recordSince(SAVEMetrics.UNION_MODEL, metricsPolicy, procedure, overlayStart);
+        RDFNode focusNode = dataModel.getResource(replacePrefixWithURI(name));
 //        System.out.println(ModelPrinter.get().print(infModel));
-        Instant start = Instant.now();
-        Model triples = RuleUtil.executeRules(focusNode, testModel, null, null);
+        long start = System.nanoTime();
+        Model triples = compiledPolicy.executeRules(focusNode, candidateRules);
+        metrics.recordSince(SAVEMetrics.RULE_EXECUTION, metricsPolicy, procedure, start);
         triples.setNsPrefixes(model.getNsPrefixMap());
-        Instant finish = Instant.now();
-        long timeElapsed = Duration.between(start, finish).toMillis();
+        double timeElapsed = (System.nanoTime() - start) / 1e6;
         if(subrequest) {
             result.addExecTimePerSubrequest(timeElapsed);
         } else {
@@ -253,7 +754,6 @@ public class SHACLInferenceRunner {
 ////            System.out.println("Request "+ name + "\tInferred triples " + triples.size() +
 ////                    "\tIn " + timeElapsed + " milliseconds");
 //        }
-        model.remove(unionModel);
 //        System.out.println(ModelPrinter.get().print(result));
         return result;
     }
@@ -268,24 +768,23 @@ public class SHACLInferenceRunner {
      * @return the triple with the attribute added
      */
     private Statement addAttributeStatement(String attribute, String value, Resource baseNode, boolean valueIsClass, Model singleModel){
-        // first, if the value is a class, check if there is a corresponding individual
-        // if not, create one
-        // check in both models, inference and union, write into union!
-        Resource valueIndividual;
-        if (valueIsClass) {
-            valueIndividual = JenaUtils.getAnyIndividualFromConcept(value, vocab.savePrefix, saveModel);
-        } else {
-            valueIndividual = infModel.createResource(replacePrefixWithURI(value));
-        }
-        Statement stmt = infModel.createStatement(baseNode,
-                infModel.createProperty(replacePrefixWithURI(attribute)),
-                //here replace with creation of same-named individual if it doesn't exist in the model or infModel
-                valueIndividual);
-        infModel.add(stmt);
-        if(singleModel != null) {
-            singleModel.add(stmt);
+        // if the value is a class, take its individual from SAVE (both resolved once by the dictionary)
+        Node valueIndividual = valueIsClass ? dictionary.getIndividual(value) : dictionary.getNode(value);
+        return addTriple(Triple.create(baseNode.asNode(), dictionary.getNode(attribute), valueIndividual), singleModel);
+    }
+
+    /**
+     * Adds the triple straight to the graphs, without creating resources and statements for its terms
+     * @param triple the triple to add
+     * @param singleModel if not null, also add the triple to this model
+     * @return the statement of the triple in the inference model
+     */
+    private Statement addTriple(Triple triple, Model singleModel) {
+        infModel.getGraph().add(triple);
+        if (singleModel != null) {
+            singleModel.getGraph().add(triple);
         }
-        return stmt;
+        return infModel.asStatement(triple);
     }
 
 
@@ -297,15 +796,14 @@ public class SHACLInferenceRunner {
      * @return name of the parent request
      */
     public String addParentSAVERuleToModel(SAVERule rule, List<String> childrenNames, Model singleModel){
+        long start = System.nanoTime();
         //add to model the rule, and all the individuals if they don't exist yet
         //1. create initial statement
 //        Statement mainStmt = infModel.createStatement(infModel.createResource(replacePrefixWithURI(rule.getName())),
 //                infModel.createProperty(replacePrefixWithURI("rdf:type")),
 //                infModel.createResource(replacePrefixWithURI(rule.getType())));
-        Statement mainStmt = infModel.createStatement(infModel.createResource(replacePrefixWithURI(rule.getName())),
-                RDF.type,
-                infModel.createResource(replacePrefixWithURI(rule.getType())));
-        infModel.add(mainStmt);
+        Statement mainStmt = addTriple(Triple.create(dictionary.getNode(rule.getName()), RDF.Nodes.type,
+                dictionary.getNode(rule.getType())), null);
         Resource baseNode = mainStmt.getSubject();
         if (!rule.getData().isEmpty()){
             for (String value: rule.getData().keySet()){
@@ -369,6 +867,7 @@ public class SHACLInferenceRunner {
                 Statement stmt = addAttributeStatement(vocab.childPropertyPrefixedName, name, baseNode, false, singleModel);
             }
         }
+        metrics.recordSince(SAVEMetrics.MATERIALIZATION, metricsPolicy, SAVEMetrics.CORE, start);
         return rule.getName();
     }
 
@@ -383,17 +882,13 @@ public class SHACLInferenceRunner {
      * @param singleModel if not null, use this model to add the request triples
      * @return name of the child request (subrequest)
      */
-    public String addChildSAVERuleToModel(List<String> attributes, List<String> combination, String ruleName, String ruleType, int number,
+    public String addChildSAVERuleToModel(List<String> attributes, List<String> combination, String ruleName, String ruleType, long number,
                                           String parentName, Model singleModel){
+        long start = System.nanoTime();
         //add to model the rule, and all the individuals if they don't exist yet
         //create initial statement
-        Statement mainStmt = infModel.createStatement(infModel.createResource(replacePrefixWithURI(ruleName + "_"+ number)),
-                RDF.type,
-                infModel.createResource(replacePrefixWithURI(ruleType)));
-        infModel.add(mainStmt);
-        if (singleModel != null) {
-            singleModel.add(mainStmt);
-        }
+        Statement mainStmt = addTriple(Triple.create(dictionary.getNode(ruleName, number), RDF.Nodes.type,
+                dictionary.getNode(ruleType)), singleModel);
         Resource baseNode = mainStmt.getSubject();
         for (int i=0; i < attributes.size(); i++){
             Statement stmt = addAttributeStatement(attributes.get(i), combination.get(i), baseNode, vocab.isClassAttribute(attributes.get(i)),
@@ -404,6 +899,7 @@ public class SHACLInferenceRunner {
             Statement stmt = addAttributeStatement(vocab.parentPropertyPrefixedName, parentName, baseNode, false,
                     singleModel);
         }
+        metrics.recordSince(SAVEMetrics.MATERIALIZATION, metricsPolicy, SAVEMetrics.CORE, start);
         return ruleName + "_"+ number;
     }
 
@@ -419,12 +915,14 @@ public class SHACLInferenceRunner {
                                                                   boolean verbose) {
         SHACLComplianceResult result = new SHACLComplianceResult(1, mode, unionModel);
         result.addnSubrequests(ruleNormalized.getCombinations().size());
+        candidateRules = findCandidateRules(Collections.singletonList(ruleNormalized), true);
         String normRequestName= addSPARQLSAVERuleToModel(ruleNormalized);
         result  = runInferenceOnSingleRequest(normRequestName, result, null,false, true, verbose);
         if(verbose) {
             System.out.println("Avg running time on 1 requests (separately) was " +
                     result.getExecTimePerRequest().get(result.getExecTimePerRequest().size() - 1) + " ms");
         }
+        recordSPARQLAnswer(result, ruleNormalized.getName());
         result.setExecTimeTotal(result.getExecTimePerRequest().get(result.getExecTimePerRequest().size() - 1));
         result.setnProcessed(1);
         return result;
@@ -437,10 +935,9 @@ public class SHACLInferenceRunner {
      * @return the name of the request
      */
     public String addSPARQLSAVERuleToModel(SAVERuleNormalized ruleNormalized){
-        Statement mainStmt = infModel.createStatement(infModel.createResource(replacePrefixWithURI(ruleNormalized.getName() + "_opt")),
-                RDF.type,
-                infModel.createResource(replacePrefixWithURI(ruleNormalized.getType())));
-        infModel.add(mainStmt);
+        long start = System.nanoTime();
+        Statement mainStmt = addTriple(Triple.create(dictionary.getNode(ruleNormalized.getName() + "_opt"), RDF.Nodes.type,
+                dictionary.getNode(ruleNormalized.getType())), null);
         List<String> valueAttrs = new ArrayList<>();
         valueAttrs.add(vocab.controllerPropertyPrefixedName);
         valueAttrs.add(vocab.processorPropertyPrefixedName);
@@ -455,6 +952,7 @@ public class SHACLInferenceRunner {
                     ruleNormalized.getValues().get(i), baseNode,
                     !valueAttrs.contains(attribute));
         }
+        metrics.recordSince(SAVEMetrics.MATERIALIZATION, metricsPolicy, SAVEMetrics.SPARQL, start);
         return ruleNormalized.getName() + "_opt";
     }
 
@@ -470,24 +968,15 @@ public class SHACLInferenceRunner {
         // first, if the value is a class, check if there is a corresponding individual
         // if not, create one
         // check in both models, inference and union, write into union!
-        RDFList list = null;
+        List<RDFNode> valueIndividuals = new ArrayList<>(values.size());
         for (String value : values) {
-            Resource valueIndividual;
-            if(valueIsClass){
-                valueIndividual = JenaUtils.getAnyIndividualFromConcept(value, vocab.savePrefix, saveModel);
-            } else {
-                valueIndividual = infModel.createResource(replacePrefixWithURI(value));
-            }
-
-            if (list == null) {
-                list = infModel.createList(valueIndividual);
-            } else {
-                list.add(valueIndividual);
-            }
-            // add an "OR" condition
+            valueIndividuals.add(infModel.asRDFNode(valueIsClass ? dictionary.getIndividual(value)
+                    : dictionary.getNode(value)));
         }
+        // an "OR" condition, built in one pass (RDFList.add walks the whole list for every value)
+        RDFList list = infModel.createList(valueIndividuals.iterator());
         Statement stmt = infModel.createStatement(baseNode,
-                infModel.createProperty(replacePrefixWithURI(attribute + "List")),
+                infModel.createProperty(dictionary.getNode(attribute + "List").getURI()),
                 //here replace with creation of same-named individual if it doesn't exist in the model or infModel
                 list);
         infModel.add(stmt);
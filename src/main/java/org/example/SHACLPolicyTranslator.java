@@ -7,21 +7,58 @@ import org.topbraid.jenax.util.JenaUtil;
 import org.topbraid.shacl.vocabulary.SH;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Class responsible for the translation of SAVE policy to SHACL policy
  */
 public class SHACLPolicyTranslator {
 
+    /**
+     * The ways to translate a policy
+     */
+    private enum Translation {
+        CORE, SPARQL, SPARQL_COMBINED
+    }
+
+    /**
+     * label of the rule of a SAVE rule, written by addRuleLabel: type and prefixed name of the rule
+     */
+    private static final Pattern RULE_LABEL = Pattern.compile("Infer if \\$this is covered by (\\S+) (\\S+)");
+
     private Model unionModel;
     private Model infModel;
     private SAVEPolicy savePolicy;
     private SAVEVocabulary vocab;
 
+    /**
+     * the policy node shape of the last translation
+     */
+    private Resource policyShape;
+
+    /**
+     * prefixed name of every translated rule to its sh:rule node
+     */
+    private final Map<String, Resource> ruleShapes = new HashMap<>();
+
+    /**
+     * translation of the policy, to translate the added or updated rules the same way
+     */
+    private Translation translation;
+
+    /**
+     * the sh:rule node standing for all the rules in the combined SPARQL translation
+     */
+    private Resource combinedRule;
+
+    /**
+     * whether the SPARQL queries look the classes of the items up with the materialized typeClosure property
+     */
+    private boolean typeClosure = false;
+
     /**
      * Constructor.
      * @param model the model with necessary prefixes and concepts
@@ -53,6 +90,30 @@ public class SHACLPolicyTranslator {
         this.savePolicy = savePolicy;
     }
 
+    public boolean isTypeClosure() {
+        return typeClosure;
+    }
+
+    /**
+     * Sets the mode of the SPARQL translation: with typeClosure, the queries use the typeClosure property
+     * instead of the rdf:type/rdfs:subClassOf* path, so the data graph of the inference has to contain
+     * SAVEClassHierarchy.createTypeClosureModel. SHACLInferenceRunner materializes it from its union model
+     * and layers it over the model when the shapes need it. The closure is not updated with the requests:
+     * the items typed only in the request data are not matched
+     * @param typeClosure whether to use the materialized closure, default = false
+     */
+    public void setTypeClosure(boolean typeClosure) {
+        this.typeClosure = typeClosure;
+    }
+
+    /**
+     * @param path the rdf:type/rdfs:subClassOf* path as written in the query
+     * @return the path from an item to all its classes in the SPARQL queries, depending on the mode
+     */
+    private String getTypePath(String path) {
+        return typeClosure ? vocab.typeClosurePropertyPrefixedName : path;
+    }
+
     /**
      * Main method, taking the policy and translaitng every rule into SHACL rule automatically
      * for the Core procedure
@@ -60,8 +121,10 @@ public class SHACLPolicyTranslator {
     public void translateSAVEPolicyToSHACL() {
         Statement[] policyTypeStatements = addPolicyTypes();
         Resource baseNode = policyTypeStatements[0].getSubject();
+        policyShape = baseNode;
         addPolicyLabel(baseNode);
         addPolicySubClass(baseNode);
+        translation = Translation.CORE;
         for (SAVERule rule : savePolicy.getPermissions()) {
             addSAVERule(rule, baseNode);
         }
@@ -81,8 +144,10 @@ public class SHACLPolicyTranslator {
     public void translateSAVEPolicyToSHACLSPARQL() {
         Statement[] policyTypeStatements = addPolicyTypes();
         Resource baseNode = policyTypeStatements[0].getSubject();
+        policyShape = baseNode;
         addPolicyLabel(baseNode);
         addPolicySubClass(baseNode);
+        translation = Translation.SPARQL;
         for (SAVERule rule : savePolicy.getPermissions()) {
             addSAVERuleSPARQL(rule, baseNode);
         }
@@ -95,6 +160,167 @@ public class SHACLPolicyTranslator {
         addFinalRuleSPARQL(baseNode);
     }
 
+    /**
+     * Alternative to translateSAVEPolicyToSHACLSPARQL, translating all the rules into one SHACL rule
+     * for the SHACL-SPARQL procedure: the values of every rule are bound in a VALUES block, so a request is checked by
+     * one query instead of one query per rule. It infers the same triples, and the final rule is the same.
+     * The rules have no rule nodes of their own, so getRuleShapes finds none and the combined rule is always run whole
+     */
+    public void translateSAVEPolicyToSHACLSPARQLCombined() {
+        Statement[] policyTypeStatements = addPolicyTypes();
+        Resource baseNode = policyTypeStatements[0].getSubject();
+        policyShape = baseNode;
+        addPolicyLabel(baseNode);
+        addPolicySubClass(baseNode);
+        translation = Translation.SPARQL_COMBINED;
+        combinedRule = addCombinedRuleSPARQL(getTranslatedRules(), baseNode).getResource();
+        addFinalRuleSPARQL(baseNode);
+    }
+
+    /**
+     * @return the rules of the policy that are translated (obligations are not)
+     */
+    private List<SAVERule> getTranslatedRules() {
+        List<SAVERule> rules = new ArrayList<>(savePolicy.getPermissions());
+        rules.addAll(savePolicy.getProhibitions());
+        rules.addAll(savePolicy.getDispensations());
+        return rules;
+    }
+
+    /**
+     * Adds a rule to the translated policy and to the SAVE policy. Only the shape of the rule is added to the
+     * model, the same way as by the last translation (for the combined SPARQL translation, the combined rule is
+     * translated again). The final rule does not depend on the rules and stays as it is
+     * @param rule the rule to add
+     * @throws IllegalStateException if the policy was not translated yet
+     * @throws IllegalArgumentException if the policy already has a rule with this name
+     */
+    public void addRule(SAVERule rule) {
+        checkTranslated();
+        if (findRule(rule.getName()) != null) {
+            throw new IllegalArgumentException("The policy already has a rule " + rule.getName());
+        }
+        savePolicy.addRule(rule);
+        translateRule(rule);
+    }
+
+    /**
+     * Removes a rule from the translated policy and from the SAVE policy, only the shape of the rule is removed
+     * @param ruleName the prefixed name of the rule
+     * @return whether the policy had the rule
+     * @throws IllegalStateException if the policy was not translated yet
+     */
+    public boolean removeRule(String ruleName) {
+        checkTranslated();
+        SAVERule rule = findRule(ruleName);
+        if (rule == null) {
+            return false;
+        }
+        removeFromPolicy(rule);
+        if (translation == Translation.SPARQL_COMBINED) {
+            translateCombinedRule();
+        } else {
+            removeRuleShape(ruleName);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the rule with the same name (the type may change), only the shape of the rule is translated again
+     * @param rule the new version of the rule
+     * @throws IllegalStateException if the policy was not translated yet
+     * @throws IllegalArgumentException if the policy has no rule with this name
+     */
+    public void updateRule(SAVERule rule) {
+        checkTranslated();
+        SAVERule old = findRule(rule.getName());
+        if (old == null) {
+            throw new IllegalArgumentException("The policy has no rule " + rule.getName());
+        }
+        removeFromPolicy(old);
+        savePolicy.addRule(rule);
+        if (translation != Translation.SPARQL_COMBINED) {
+            removeRuleShape(rule.getName());
+        }
+        translateRule(rule);
+    }
+
+    private void checkTranslated() {
+        if (translation == null) {
+            throw new IllegalStateException("Translate the policy before changing its rules");
+        }
+    }
+
+    private SAVERule findRule(String ruleName) {
+        for (List<SAVERule> rules : Arrays.asList(savePolicy.getPermissions(), savePolicy.getProhibitions(),
+                savePolicy.getObligations(), savePolicy.getDispensations())) {
+            for (SAVERule rule : rules) {
+                if (rule.getName().equals(ruleName)) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removeFromPolicy(SAVERule rule) {
+        savePolicy.getPermissions().remove(rule);
+        savePolicy.getProhibitions().remove(rule);
+        savePolicy.getObligations().remove(rule);
+        savePolicy.getDispensations().remove(rule);
+    }
+
+    /**
+     * Translates one rule of the policy into the model, the same way as the policy
+     * @param rule the rule, already in the SAVE policy
+     */
+    private void translateRule(SAVERule rule) {
+        if (rule.getType().endsWith("Obligation")) {
+            // obligations are not translated
+            return;
+        }
+        switch (translation) {
+            case CORE:
+                addSAVERule(rule, policyShape);
+                break;
+            case SPARQL:
+                addSAVERuleSPARQL(rule, policyShape);
+                break;
+            case SPARQL_COMBINED:
+                translateCombinedRule();
+                break;
+        }
+    }
+
+    private void translateCombinedRule() {
+        infModel.remove(policyShape, SH.rule, combinedRule);
+        removeBlankNodes(combinedRule);
+        combinedRule = addCombinedRuleSPARQL(getTranslatedRules(), policyShape).getResource();
+    }
+
+    private void removeRuleShape(String ruleName) {
+        Resource shape = ruleShapes.remove(ruleName);
+        if (shape != null) {
+            infModel.remove(policyShape, SH.rule, shape);
+            removeBlankNodes(shape);
+        }
+    }
+
+    /**
+     * Removes the triples of a blank node (shape, list, etc.) and of the blank nodes it refers to
+     * @param node the node to remove, nothing is done if it is not a blank node
+     */
+    private void removeBlankNodes(RDFNode node) {
+        if (!node.isAnon()) {
+            return;
+        }
+        List<Statement> stmts = infModel.listStatements(node.asResource(), null, (RDFNode) null).toList();
+        infModel.remove(stmts);
+        for (Statement stmt : stmts) {
+            removeBlankNodes(stmt.getObject());
+        }
+    }
+
     /**
      * Adds "final" rule to the SHACL-SPARQL policy, deciding the final answer to the request
      * @param subject subject of the triple where the final rule should be attached
@@ -336,6 +562,7 @@ public class SHACLPolicyTranslator {
         addRuleConstruct(typeStatement.getSubject(), rule.getName(), rule.getType());
         addOrder(1, typeStatement.getSubject());
 //        addPrefixes(typeStatement.getSubject());
+        ruleShapes.put(rule.getName(), typeStatement.getSubject());
         return addRuleStmt(typeStatement.getSubject(), baseNode);
     }
 
@@ -364,6 +591,7 @@ public class SHACLPolicyTranslator {
 
         addRuleConstructSPARQL(typeStatement.getSubject(), rule);
         addOrder(1, typeStatement.getSubject());
+        ruleShapes.put(rule.getName(), typeStatement.getSubject());
         return addRuleStmt(typeStatement.getSubject(), baseNode);
     }
 
@@ -832,22 +1060,16 @@ public class SHACLPolicyTranslator {
                                             Resource baseNode) {
         Statement classNodes;
         if (values.size() > 1) {
-            RDFList dataList = null;
-            Statement node;
+            List<RDFNode> nodes = new ArrayList<>(values.size());
             for (String val : values) {
                 if (isValue) {
-                    node = addValueStatement(val);
+                    nodes.add(addValueStatement(val).getSubject());
                 } else {
-                    node = addClassStatement(val);
-                }
-
-                if (dataList == null) {
-                    dataList = infModel.createList(node.getSubject());
-                } else {
-                    dataList.add(node.getSubject());
+                    nodes.add(addClassStatement(val).getSubject());
                 }
             }
-            classNodes = addOrListStatement(dataList, null);
+            // built in one pass, RDFList.add walks the whole list for every value
+            classNodes = addOrListStatement(infModel.createList(nodes.iterator()), null);
         } else {
             if (isValue) {
                 classNodes = addValueStatement(values.iterator().next());
@@ -943,7 +1165,7 @@ public class SHACLPolicyTranslator {
                                        "OPTIONAL { " +
                                         "$this $PATH ?value . " +
                                         "?value (rdf:rest)*/rdf:first ?item . " +
-                                        "?item rdf:type/(rdfs:subClassOf)* ?attrClass . " +
+                                        "?item " + getTypePath("rdf:type/(rdfs:subClassOf)*") + " ?attrClass . " +
                                         "BIND(( ?attrClass IN (%s) ) AS ?intersects) " +
                                       "} " +
                                     "} " +
@@ -1144,6 +1366,133 @@ public class SHACLPolicyTranslator {
         return addConstruct(query, baseNode);
     }
 
+    /**
+     * For the combined SPARQL version, adds the one rule standing for all the rules of the policy
+     * @param rules the rules of the policy
+     * @param baseNode the policy node to attach the rule to
+     * @return the triple added to the model
+     */
+    private Statement addCombinedRuleSPARQL(List<SAVERule> rules, Resource baseNode) {
+        Statement typeStatement = addRuleType();
+        Statement labelStatement = infModel.createStatement(typeStatement.getSubject(),
+                RDFS.label,
+                String.format("Infer if $this is covered by the rules of %s", savePolicy.getName()));
+        infModel.add(labelStatement);
+        addParentShapeCondition(typeStatement.getSubject());
+        addCombinedRuleConstructSPARQL(typeStatement.getSubject(), rules);
+        addOrder(1, typeStatement.getSubject());
+        return addRuleStmt(typeStatement.getSubject(), baseNode);
+    }
+
+    /**
+     * For the combined SPARQL version, adds the construct of all the rules. Every (rule, attribute, value) is a row
+     * of the VALUES blocks, joined with the lists of the request (or with the default value if the request has no list).
+     * A rule holds if each of its attributes has a row, which replaces the conditions of the separate rules, and the
+     * same intersection is constructed as by addRuleConstructSPARQL
+     * @param baseNode node to attach the triple to
+     * @param rules the rules of the policy
+     * @return triple added to the model
+     */
+    private Statement addCombinedRuleConstructSPARQL(Resource baseNode, List<SAVERule> rules) {
+        StringBuilder classRows = new StringBuilder();
+        StringBuilder valueRows = new StringBuilder();
+        for (SAVERule rule : rules) {
+            addCombinedRuleRows(rule, classRows, valueRows);
+        }
+        String matches = "{ " +
+                    "{ " +
+                        "VALUES (?rule ?resultProperty ?answer ?attrList ?itemProperty ?classProperty ?allowed ?default) { %1$s } " +
+                        "{ " +
+                            "{ $this ?attrList ?val . ?val rdf:rest*/rdf:first ?requestItem . ?requestItem %4$s ?allowed . } " +
+                            "UNION { VALUES ?attrList { %3$s } FILTER NOT EXISTS { $this ?attrList ?absentVal . } } " +
+                        "} " +
+                        "BIND(COALESCE(?requestItem, ?default) AS ?item) " +
+                        "BIND(?allowed AS ?class) " +
+                    "} " +
+                    "UNION { " +
+                        "VALUES (?rule ?resultProperty ?answer ?attrList ?itemProperty ?allowed ?required) { %2$s } " +
+                        "{ " +
+                            "{ $this ?attrList ?val . ?val rdf:rest*/rdf:first ?allowed . } " +
+                            "UNION { VALUES ?attrList { %3$s } FILTER NOT EXISTS { $this ?attrList ?absentVal . } BIND(true AS ?absent) } " +
+                        "} " +
+                        "FILTER (!BOUND(?absent) || !?required) " +
+                        "BIND(?allowed AS ?item) " +
+                    "} " +
+                "} ";
+        matches = String.format(matches, classRows, valueRows, String.join(" ", vocab.listAtributes),
+                getTypePath("rdf:type/rdfs:subClassOf*"));
+        // the blank node is created once per rule, the rows of the rule are joined to it
+        String query = "CONSTRUCT { " +
+                        "?bnode  a save-ex:RuleIntersection ; " +
+                        "?itemProperty ?item ; " +
+                        "?classProperty ?class ; " +
+                        "%1$s ?rule ; " +
+                        "%2$s ?answer . " +
+                "$this   ?resultProperty ?bnode . " +
+                "} " +
+                "WHERE { " +
+                    "{SELECT $this ?rule (BNODE() AS ?bnode) " +
+                        "WHERE { %3$s } " +
+                        "GROUP BY $this ?rule " +
+                        "HAVING (COUNT(DISTINCT ?attrList) = %4$d) " +
+                    "} " +
+                    "%3$s " +
+                "} ";
+        query = String.format(query, vocab.rulePropertyPrefixedName, vocab.answerPropertyPrefixedName, matches,
+                vocab.listAtributes.size());
+        query = SPARQLUtils.addPrefixesToSparqlString(query, infModel);
+        return addConstruct(query, baseNode);
+    }
+
+    /**
+     * For the combined SPARQL version, adds the VALUES rows of one rule, with the same values as addRuleConstructSPARQL:
+     * the classes of the hierarchical attributes, the individuals of the constant ones, the root class if the rule
+     * does not constrain the attribute
+     * @param rule the rule
+     * @param classRows the rows of the attributes checked by class
+     * @param valueRows the rows of the attributes checked by value
+     */
+    private void addCombinedRuleRows(SAVERule rule, StringBuilder classRows, StringBuilder valueRows) {
+        addCombinedRuleRows(rule, vocab.dataPropertyPrefixedName, rule.getData().values(), false, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.actionPropertyPrefixedName, rule.getActions().values(), false, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.purposePropertyPrefixedName, rule.getPurposes().values(), false, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.legalBasisPropertyPrefixedName, rule.getLegalBases().values(), false, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.measurePropertyPrefixedName, rule.getMeasures().values(), false, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.controllerPropertyPrefixedName, rule.getControllers().keySet(), true, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.processorPropertyPrefixedName, rule.getProcessors().keySet(), true, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.dataSubjectPropertyPrefixedName, rule.getDataSubjects().keySet(), true, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.responsiblePartyPropertyPrefixedName, rule.getResponsibleParties().keySet(), true, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.senderPropertyPrefixedName, rule.getSenders().keySet(), true, classRows, valueRows);
+        addCombinedRuleRows(rule, vocab.recipientPropertyPrefixedName, rule.getRecipients().keySet(), true, classRows, valueRows);
+    }
+
+    private void addCombinedRuleRows(SAVERule rule, String attribute, Collection<String> values, boolean isValue,
+                                     StringBuilder classRows, StringBuilder valueRows) {
+        String name = attribute.split(":")[1];
+        String prefix = rule.getName() + " " +
+                ((rule.getType().endsWith("Permission") || rule.getType().endsWith("Dispensation")) ?
+                        vocab.conformsPropertyPrefixedName + " \"permitted\" " : vocab.prohibitedPropertyPrefixedName + " \"prohibited\" ") +
+                String.format("%1$s:%2$sList %1$s:%2$sIntersection ", vocab.savePrefix, name);
+        if (values.isEmpty()) {
+            values = Collections.singletonList(vocab.rootMap.get(attribute));
+            isValue = false;
+        }
+        if (isValue) {
+            // the request needs the attribute (sh:minCount 1 of the condition), unless the root is allowed
+            boolean required = !values.contains(vocab.rootMap.get(attribute));
+            for (String value : values) {
+                valueRows.append("(").append(prefix).append(value).append(" ").append(required).append(") ");
+            }
+        } else {
+            for (String value : values) {
+                Object individual = getDefaultIndividual(value);
+                classRows.append("(").append(prefix)
+                        .append(String.format("%1$s:%2$sClassIntersection ", vocab.savePrefix, name))
+                        .append(value).append(" ").append(individual == null ? "UNDEF" : individual).append(") ");
+            }
+        }
+    }
+
     /**
      * For SPARQL procedure, create an assertion of the intersection for the attribute
      * @param attributePrefixedName the name of the attribute
@@ -1173,7 +1522,7 @@ public class SHACLPolicyTranslator {
                            "{ " +
                                 "$this save:%1$sList ?%1$sVal . " +
                                 "?%1$sVal rdf:rest*/rdf:first ?%1$sItem . " +
-                                "?%1$sItem rdf:type/rdfs:subClassOf* ?%1$sClass . " +
+                                "?%1$sItem " + getTypePath("rdf:type/rdfs:subClassOf*") + " ?%1$sClass . " +
                                 "FILTER (?%1$sClass IN (%2$s)) " +
                            "} " +
                            "UNION { " +
@@ -1369,17 +1718,51 @@ public class SHACLPolicyTranslator {
     }
 
     /**
-     * Writes the generated policy to the file
+     * Finds the rules of the SAVE rules in a translated policy by their labels (see addRuleLabel), e.g. to run only
+     * the candidate rules of a request found with SAVEComplianceEngine.getCandidateRules. The combined rule and
+     * the final rule are not SAVE rules
+     * @param shapesModel the SHACL policy (Core or SPARQL)
+     * @return prefixed name of the SAVE rule to its sh:rule node
+     */
+    public static Map<String, Resource> getRuleShapes(Model shapesModel) {
+        Map<String, Resource> rules = new HashMap<>();
+        for (Statement stmt : shapesModel.listStatements(null, SH.rule, (RDFNode) null).toList()) {
+            if (!stmt.getObject().isResource()) {
+                continue;
+            }
+            Statement label = stmt.getResource().getProperty(RDFS.label);
+            if (label == null || !label.getObject().isLiteral()) {
+                continue;
+            }
+            Matcher matcher = RULE_LABEL.matcher(label.getString());
+            if (matcher.matches()) {
+                rules.put(matcher.group(2), stmt.getResource());
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Writes the generated policy to the file (Turtle)
      * @param folder folder to write into
      * @param SPARQL whether the SHACL shapes were created with Core or SPARQL procedure
      */
     public void writeSHACLPolicyToFile(String folder, boolean SPARQL) {
+        writeSHACLPolicyToFile(folder, SPARQL, "ttl");
+    }
+
+    /**
+     * Writes the generated policy to the file, streamed (see ModelUtils.writeModelStreaming)
+     * @param folder folder to write into
+     * @param SPARQL whether the SHACL shapes were created with Core or SPARQL procedure
+     * @param extension the format of the file: ttl, nt, ttl.gz or nt.gz
+     */
+    public void writeSHACLPolicyToFile(String folder, boolean SPARQL, String extension) {
         File f = new File(folder);
         boolean dirCreated = f.mkdirs();
-        String filename = String.format(folder + "%s.shapes%s.ttl", savePolicy.getName().split(":")[1], SPARQL ? ".sparql" : ".core");
-        File out = new File(filename);
+        String filename = String.format(folder + "%s.shapes%s.%s", savePolicy.getName().split(":")[1], SPARQL ? ".sparql" : ".core", extension);
         try {
-            infModel.write(new FileWriter(out), "Turtle");
+            ModelUtils.writeModelStreaming(infModel, filename);
         } catch (IOException e) {
             e.printStackTrace();
         }
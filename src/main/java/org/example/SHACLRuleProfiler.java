@@ -0,0 +1,421 @@
+package org.example;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.vocabulary.RDFS;
+import org.topbraid.jenax.statistics.ExecStatistics;
+import org.topbraid.jenax.statistics.ExecStatisticsListener;
+import org.topbraid.jenax.statistics.ExecStatisticsManager;
+import org.topbraid.shacl.engine.Shape;
+import org.topbraid.shacl.engine.ShapesGraph;
+import org.topbraid.shacl.rules.Rule;
+import org.topbraid.shacl.rules.RuleEngine;
+import org.topbraid.shacl.vocabulary.SH;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Opt-in profiler of the rules of one policy: every rule (sh:rule node) gets its number of runs, the time of its
+ * sh:condition checks, the time of every execution in a LatencyHistogram and the number of triples it inferred
+ * (duplicates included, so the number of solutions times the triples of the template for SPARQL rules).
+ * The constraint components of the conditions are profiled too.
+ * The rule engines of the profiled SHACLCompiledPolicy are created here. TopBraid records execution statistics at the
+ * end of every rule and every constraint: they are used as the boundaries of the timings. The statistics are
+ * recorded and listened to only while a profiled execution is running, then the recording is restored as it was.
+ * If nobody else recorded them, the statistics read are dropped, otherwise they are left for the other consumers.
+ * A closed profiler does not profile the next executions
+ */
+public class SHACLRuleProfiler implements AutoCloseable {
+
+    /**
+     * the profiled engine running on the thread, to give it the statistics of its rules
+     */
+    private static final ThreadLocal<ProfilingRuleEngine> currentEngine = new ThreadLocal<>();
+
+    private static final ExecStatisticsListener listener = SHACLRuleProfiler::statisticsUpdated;
+
+    /**
+     * the number of profiled executions running (of all the profilers), guarded by the ExecStatisticsManager
+     */
+    private static int running;
+
+    /**
+     * whether the recording was switched on by the profilers, so the statistics are theirs to drop
+     */
+    private static volatile boolean ownRecording;
+
+    private final String policyName;
+
+    private volatile boolean closed;
+
+    /**
+     * sh:rule node to the profile of the rule, in the order of the first run
+     */
+    private final Map<Node, Profile> rules = new LinkedHashMap<>();
+
+    /**
+     * constraint component node to the profile of its checks in the conditions
+     */
+    private final Map<Node, Profile> constraints = new LinkedHashMap<>();
+
+    /**
+     * @param policyName the name of the policy, for the report
+     */
+    public SHACLRuleProfiler(String policyName) {
+        this.policyName = policyName;
+    }
+
+    /**
+     * Starts listening to the statistics for one profiled execution, the first one switches the recording on
+     */
+    private static void beginExecution() {
+        ExecStatisticsManager manager = ExecStatisticsManager.get();
+        // the listeners are notified under the lock of the manager
+        synchronized (manager) {
+            if (running++ == 0) {
+                ownRecording = !manager.isRecording();
+                manager.addListener(listener);
+                manager.setRecording(true);
+            }
+        }
+    }
+
+    /**
+     * Ends one profiled execution, the last one removes the listener and restores the recording
+     */
+    private static void endExecution() {
+        ExecStatisticsManager manager = ExecStatisticsManager.get();
+        synchronized (manager) {
+            if (--running == 0) {
+                manager.removeListener(listener);
+                if (ownRecording) {
+                    manager.setRecording(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by ExecStatisticsManager.add, i.e. in the thread of the rule and under the lock of the manager
+     */
+    private static void statisticsUpdated() {
+        List<ExecStatistics> statistics = ExecStatisticsManager.get().getStatistics();
+        if (statistics.isEmpty()) {
+            return;
+        }
+        ExecStatistics last = statistics.get(statistics.size() - 1);
+        if (ownRecording) {
+            statistics.remove(statistics.size() - 1);
+        }
+        ProfilingRuleEngine engine = currentEngine.get();
+        if (engine != null) {
+            engine.executed(last);
+        }
+    }
+
+    /**
+     * Stops profiling: the executions started afterwards are not profiled (the running ones end as usual)
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    /**
+     * Creates the rule engine of one inference run, same arguments as the RuleEngine
+     * @param dataset the dataset with the data and the shapes graph
+     * @param shapesGraphURI the URI of the shapes graph in the dataset
+     * @param shapesGraph the shapes graph
+     * @param inferences the model to add the inferred triples to
+     * @return the engine recording into this profiler, a plain RuleEngine if the profiler is closed
+     */
+    public RuleEngine createRuleEngine(Dataset dataset, URI shapesGraphURI, ShapesGraph shapesGraph, Model inferences) {
+        return closed ? new RuleEngine(dataset, shapesGraphURI, shapesGraph, inferences)
+                : new ProfilingRuleEngine(dataset, shapesGraphURI, shapesGraph, inferences);
+    }
+
+    private Profile getRuleProfile(Node rule, Shape shape, Model shapesModel) {
+        Profile profile = rules.get(rule);
+        if (profile == null) {
+            profile = new Profile(getLabel(rule, shapesModel),
+                    SPARQLUtils.getPrefixedLabel(shape.getShapeResource().toString(), shapesModel));
+            rules.put(rule, profile);
+        }
+        return profile;
+    }
+
+    private Profile getConstraintProfile(Node component, Model shapesModel) {
+        return constraints.computeIfAbsent(component, node -> new Profile(getLabel(node, shapesModel), ""));
+    }
+
+    /**
+     * @param rule the rule or the constraint component
+     * @param shapesModel the shapes model, with the SHACL system model
+     * @return the rdfs:label, the prefixed name or the node
+     */
+    private static String getLabel(Node rule, Model shapesModel) {
+        RDFNode node = shapesModel.asRDFNode(rule);
+        if (node.isResource()) {
+            Statement label = node.asResource().getProperty(RDFS.label);
+            if (label != null) {
+                return label.getString();
+            }
+        }
+        return node.isURIResource() ? SPARQLUtils.getPrefixedLabel(node.toString(), shapesModel) : rule.toString();
+    }
+
+    /**
+     * @return the profiles of the rules, the slowest (conditions and executions) first
+     */
+    public synchronized List<Profile> getRankedRules() {
+        return rank(rules.values());
+    }
+
+    /**
+     * @return the profiles of the constraint components of the conditions, the slowest first
+     */
+    public synchronized List<Profile> getRankedConstraints() {
+        return rank(constraints.values());
+    }
+
+    private static List<Profile> rank(Collection<Profile> profiles) {
+        List<Profile> ranked = new ArrayList<>(profiles);
+        ranked.sort(Comparator.comparingDouble(Profile::getTotalNanos).reversed());
+        return ranked;
+    }
+
+    /**
+     * Drops all the recorded runs
+     */
+    public synchronized void clear() {
+        rules.clear();
+        constraints.clear();
+    }
+
+    /**
+     * @return the ranked report: one line per rule with its share of the total time, the runs, the time of the
+     * conditions, the mean, p99 and max time of the executions (ms) and the inferred triples, then one line
+     * per constraint component
+     */
+    public synchronized String getReport() {
+        List<Profile> rankedRules = getRankedRules();
+        double totalNanos = 0;
+        for (Profile profile : rankedRules) {
+            totalNanos += profile.getTotalNanos();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Rule profile of %s: %d rules, %.3f ms%n", policyName,
+                rankedRules.size(), totalNanos / 1e6));
+        report.append(String.format(Locale.ROOT, "%4s %12s %6s %7s %12s %10s %10s %10s %9s  %s%n", "rank",
+                "total ms", "share", "runs", "conditions", "mean ms", "p99 ms", "max ms", "triples", "rule (shape)"));
+        for (int i = 0; i < rankedRules.size(); i++) {
+            Profile profile = rankedRules.get(i);
+            LatencyHistogram times = profile.getTimes();
+            report.append(String.format(Locale.ROOT, "%4d %12.3f %5.1f%% %7d %12.3f %10.3f %10.3f %10.3f %9d  %s (%s)%n",
+                    i + 1, profile.getTotalNanos() / 1e6, share(profile, totalNanos), times.getTotalCount(),
+                    profile.getConditionNanos() / 1e6, times.getMean() / 1e6, times.getValueAtPercentile(99) / 1e6,
+                    times.getMax() / 1e6, profile.getTriples(), profile.getLabel(), profile.getShape()));
+        }
+        report.append(String.format(Locale.ROOT, "%4s %12s %6s %7s %12s %10s %10s %10s %9s  %s%n", "rank",
+                "total ms", "share", "checks", "", "mean ms", "p99 ms", "max ms", "", "constraint component"));
+        List<Profile> rankedConstraints = getRankedConstraints();
+        for (int i = 0; i < rankedConstraints.size(); i++) {
+            Profile profile = rankedConstraints.get(i);
+            LatencyHistogram times = profile.getTimes();
+            report.append(String.format(Locale.ROOT, "%4d %12.3f %5.1f%% %7d %12s %10.3f %10.3f %10.3f %9s  %s%n",
+                    i + 1, profile.getTotalNanos() / 1e6, share(profile, totalNanos), times.getTotalCount(), "",
+                    times.getMean() / 1e6, times.getValueAtPercentile(99) / 1e6, times.getMax() / 1e6, "",
+                    profile.getLabel()));
+        }
+        return report.toString();
+    }
+
+    private static double share(Profile profile, double totalNanos) {
+        return totalNanos == 0 ? 0 : 100 * profile.getTotalNanos() / totalNanos;
+    }
+
+    /**
+     * Writes the ranked rules and constraint components as CSV, times in ns
+     * @param dirPath the folder
+     * @param experimentName the name of the file without the extension
+     */
+    public synchronized void writeToFile(String dirPath, String experimentName) {
+        new File(dirPath).mkdirs();
+        try (FileWriter writer = new FileWriter(dirPath + experimentName + ".csv")) {
+            writer.write("policy,kind,rank,name,shape,runs,total,conditions,mean,p50,p99,max,triples\n");
+            writeProfiles(writer, "rule", getRankedRules());
+            writeProfiles(writer, "constraint", getRankedConstraints());
+        } catch (IOException e) {
+            System.out.println("Cannot write into " + dirPath + experimentName + ": " + e.toString());
+        }
+    }
+
+    private void writeProfiles(FileWriter writer, String kind, List<Profile> ranked) throws IOException {
+        for (int i = 0; i < ranked.size(); i++) {
+            Profile profile = ranked.get(i);
+            LatencyHistogram times = profile.getTimes();
+            writer.write(csv(policyName) + "," + kind + "," + (i + 1) + "," + csv(profile.getLabel()) + ","
+                    + csv(profile.getShape()) + "," + times.getTotalCount() + "," + Math.round(profile.getTotalNanos())
+                    + "," + profile.getConditionNanos() + "," + Math.round(times.getMean()) + ","
+                    + times.getValueAtPercentile(50) + "," + times.getValueAtPercentile(99) + "," + times.getMax()
+                    + "," + profile.getTriples() + "\n");
+        }
+    }
+
+    private static String csv(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Runs of one rule or one constraint component
+     */
+    public static class Profile {
+        private final String label;
+        private final String shape;
+        private final LatencyHistogram times = new LatencyHistogram();
+        private long conditionNanos;
+        private long triples;
+
+        Profile(String label, String shape) {
+            this.label = label;
+            this.shape = shape;
+        }
+
+        /**
+         * @return the rdfs:label of the rule (its name or its node if none), the label of the constraint component
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return the prefixed name of the shape of the rule, empty for a constraint component
+         */
+        public String getShape() {
+            return shape;
+        }
+
+        /**
+         * @return the time of every execution of the rule or check of the constraint (ns)
+         */
+        public LatencyHistogram getTimes() {
+            return times;
+        }
+
+        /**
+         * @return the total time of the condition checks of the rule (ns), 0 for a constraint component
+         */
+        public long getConditionNanos() {
+            return conditionNanos;
+        }
+
+        /**
+         * @return the total time of the conditions and the executions (ns)
+         */
+        public double getTotalNanos() {
+            return conditionNanos + times.getMean() * times.getTotalCount();
+        }
+
+        /**
+         * @return the number of triples inferred by the rule, duplicates included
+         */
+        public long getTriples() {
+            return triples;
+        }
+    }
+
+    /**
+     * RuleEngine timing every rule and constraint from the end of the previous one (or the start of the shape):
+     * the time of the constraints checked since the previous rule is the time of the conditions of the next rule
+     */
+    private class ProfilingRuleEngine extends RuleEngine {
+
+        private final Model shapesModel;
+        private Shape shape;
+        private long start;
+        private long conditionNanos;
+
+        ProfilingRuleEngine(Dataset dataset, URI shapesGraphURI, ShapesGraph shapesGraph, Model inferences) {
+            super(dataset, shapesGraphURI, shapesGraph, inferences);
+            this.shapesModel = shapesGraph.getShapesModel();
+        }
+
+        @Override
+        public void executeAll() throws InterruptedException {
+            beginExecution();
+            try {
+                super.executeAll();
+            } finally {
+                endExecution();
+            }
+        }
+
+        @Override
+        public void executeShapes(List<Shape> shapes, RDFNode focusNode) throws InterruptedException {
+            beginExecution();
+            try {
+                super.executeShapes(shapes, focusNode);
+            } finally {
+                endExecution();
+            }
+        }
+
+        @Override
+        public void executeShape(Shape shape, String baseURI, RDFNode focusNode) throws InterruptedException {
+            ProfilingRuleEngine outer = currentEngine.get();
+            currentEngine.set(this);
+            this.shape = shape;
+            conditionNanos = 0;
+            start = System.nanoTime();
+            try {
+                super.executeShape(shape, baseURI, focusNode);
+            } finally {
+                currentEngine.set(outer);
+            }
+        }
+
+        @Override
+        public void infer(Triple triple, Rule rule, Shape shape) {
+            super.infer(triple, rule, shape);
+            synchronized (SHACLRuleProfiler.this) {
+                getRuleProfile(rule.getContextNode(), shape, shapesModel).triples++;
+            }
+        }
+
+        /**
+         * @param statistics the statistics of the rule or constraint that just ended
+         */
+        void executed(ExecStatistics statistics) {
+            long time = System.nanoTime() - start;
+            Node context = statistics.getContext();
+            synchronized (SHACLRuleProfiler.this) {
+                if (shapesModel.getGraph().contains(Node.ANY, SH.rule.asNode(), context)) {
+                    Profile profile = getRuleProfile(context, shape, shapesModel);
+                    profile.times.recordValue(time);
+                    profile.conditionNanos += conditionNanos;
+                    conditionNanos = 0;
+                } else {
+                    getConstraintProfile(context, shapesModel).times.recordValue(time);
+                    conditionNanos += time;
+                }
+            }
+            start = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.example.save.app;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.example.*;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.topbraid.jenax.util.JenaUtil;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * REST API for batches of requests: the requests (JSON or Turtle) are checked concurrently against one policy
+ * and every answer is written as one JSON line (NDJSON) as soon as it is ready, so the order is the order of completion.
+ * A batch has at most MAX_BATCH_SIZE requests, the checks still running are cancelled if the client goes away.
+ * The batches are checked on their own pool, the web pages keep the pool of MainController
+ */
+@RestController
+@RequestMapping("/api")
+public class ComplianceRestController {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * the maximal number of requests in one batch, bigger batches are rejected
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final MainController mainController;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * the checks of the batches, half of the cores so that the batches do not starve the web pages
+     * (MainController.executor)
+     */
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    public ComplianceRestController(MainController mainController, ObjectMapper objectMapper) {
+        this.mainController = mainController;
+        this.objectMapper = objectMapper;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @PostMapping(value = "/compliance", consumes = MediaType.APPLICATION_JSON_VALUE, produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> checkComplianceJson(@RequestParam String policy,
+                                                                     @RequestBody List<BatchRequest> requests) {
+        checkPolicy(policy);
+        checkBatchSize(requests.size());
+        List<SAVERule> rules = new ArrayList<>();
+        for (BatchRequest request : requests) {
+            rules.add(toSAVERule(request));
+        }
+        return streamAnswers(rules, policy);
+    }
+
+    /**
+     * Checks the requests of a Turtle body, the prefixes of the policy (save:, save-ex:, dpv:, etc.) can be used
+     * without declaring them, the body can also declare its own
+     */
+    @PostMapping(value = "/compliance", consumes = "text/turtle", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> checkComplianceTurtle(@RequestParam String policy,
+                                                                       @RequestBody String requests) {
+        checkPolicy(policy);
+        Model unionModel = mainController.policyRegistry.get(policy).getUnionModel();
+        Model requestsModel = JenaUtil.createMemoryModel();
+        requestsModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        // the parser does not use the prefixes of the model, they are declared before the body
+        StringBuilder prefixes = new StringBuilder();
+        for (Map.Entry<String, String> prefix : unionModel.getNsPrefixMap().entrySet()) {
+            prefixes.append("@prefix ").append(prefix.getKey()).append(": <").append(prefix.getValue()).append("> .\n");
+        }
+        try {
+            RDFParser.create().source(new StringReader(prefixes + requests)).lang(Lang.TURTLE).parse(requestsModel);
+        } catch (Exception e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid Turtle: " + e.getMessage());
+        }
+        List<SAVERule> rules = new ArrayList<>();
+        Model view = ModelUtils.createOverlayModel(requestsModel, unionModel);
+        for (Map.Entry<String, SAVERule> request : SPARQLUtils.getSavedRequests(view).entrySet()) {
+            // only the requests of the body, not the saved ones
+            if (requestsModel.containsResource(requestsModel.createResource(
+                    ModelUtils.replacePrefixWithURI(request.getKey(), requestsModel)))) {
+                rules.add(request.getValue());
+            }
+        }
+        checkBatchSize(rules.size());
+        return streamAnswers(rules, policy);
+    }
+
+    private void checkPolicy(String policy) {
+        if (!mainController.policies.containsKey(policy)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown policy " + policy);
+        }
+    }
+
+    private static void checkBatchSize(int size) {
+        if (size > MAX_BATCH_SIZE) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "A batch has at most " + MAX_BATCH_SIZE + " requests, got " + size);
+        }
+    }
+
+    /**
+     * Creates the SAVE request: the values of class attributes are classes, the values of party attributes
+     * are individuals, all prefixed
+     * @param request the request from the body
+     * @return the request
+     */
+    private SAVERule toSAVERule(BatchRequest request) {
+        if (request.getName() == null || !request.getName().contains(":") || request.getType() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Every request needs a prefixed name and a type");
+        }
+        SAVEVocabulary vocab = mainController.vocab;
+        SAVERule rule = new SAVERule(request.getName(), request.getType());
+        for (Map.Entry<String, List<String>> attribute : request.getAttributes().entrySet()) {
+            for (String value : attribute.getValue()) {
+                if (vocab.isClassAttribute(attribute.getKey())) {
+                    String individual;
+                    try {
+                        individual = SPARQLUtils.getPrefixedLabel(JenaUtils.getAnyIndividualFromConcept(value,
+                                vocab.savePrefix, mainController.unionModel), mainController.unionModel);
+                    } catch (NoSuchElementException e) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+                    }
+                    rule.addProperty(attribute.getKey(), individual, value);
+                } else if (vocab.isValueAttribute(attribute.getKey())) {
+                    rule.addProperty(attribute.getKey(), value, value);
+                } else {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown attribute " + attribute.getKey());
+                }
+            }
+        }
+        return rule;
+    }
+
+    private ResponseEntity<StreamingResponseBody> streamAnswers(List<SAVERule> requests, String policy) {
+        StreamingResponseBody body = out -> {
+            CompletionService<Map<String, Object>> answers = new ExecutorCompletionService<>(executor);
+            List<Future<Map<String, Object>>> futures = new ArrayList<>();
+            try {
+                for (SAVERule request : requests) {
+                    futures.add(answers.submit(() -> checkRequest(request, policy)));
+                }
+                for (int i = 0; i < requests.size(); i++) {
+                    try {
+                        out.write(objectMapper.writeValueAsBytes(answers.take().get()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the answers", e);
+                    } catch (ExecutionException e) {
+                        // checkRequest does not throw
+                        throw new IOException(e.getCause());
+                    }
+                    out.write('\n');
+                    out.flush();
+                }
+            } finally {
+                // the client went away or the stream failed: the checks left are not needed, the executor is freed
+                for (Future<Map<String, Object>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    private Map<String, Object> checkRequest(SAVERule request, String policy) {
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("request", request.getName());
+        answer.put("policy", policy);
+        long start = System.nanoTime();
+        try {
+            long normalizationStart = System.nanoTime();
+            SAVERuleNormalized requestNormalized = mainController.normalizer.normalizeSAVERule(request, false, false);
+            mainController.metrics.recordSince(SAVEMetrics.NORMALIZATION, policy, SAVEMetrics.getProcedure(policy), normalizationStart);
+            ResultModel result = mainController.checkComplianceOnRequest(requestNormalized, policy);
+            answer.put("answerPermitted", result.getFinalResultPermitted());
+            answer.put("answerProhibited", result.getFinalResultProhibited());
+            answer.put("conformsTo", getRuleNames(result.getConformsTo()));
+            answer.put("prohibitedBy", getRuleNames(result.getProhibitedBy()));
+        } catch (Exception e) {
+            answer.put("error", String.valueOf(e.getMessage()));
+        }
+        answer.put("timeMs", (System.nanoTime() - start) / 1e6);
+        return answer;
+    }
+
+    private static List<String> getRuleNames(List<SAVERule> rules) {
+        List<String> names = new ArrayList<>();
+        for (SAVERule rule : rules) {
+            names.add(rule.getName());
+        }
+        return names;
+    }
+
+    /**
+     * One request of the JSON body, e.g. {"name": "save-ex:Request_1", "type": "save-ex:RequestIMDBPolicy",
+     * "attributes": {"save:data": ["dpv:Age"], "save:controller": ["save-ex:IMDB"]}}
+     */
+    public static class BatchRequest {
+        private String name;
+        private String type;
+        private Map<String, List<String>> attributes = new LinkedHashMap<>();
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public Map<String, List<String>> getAttributes() {
+            return attributes;
+        }
+
+        public void setAttributes(Map<String, List<String>> attributes) {
+            this.attributes = attributes;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.example.save.app;
 
 //import lombok.extern.slf4j.Slf4j;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.jena.util.FileUtils;
 import org.example.*;
 import org.example.treeUtils.GenericTree;
@@ -13,9 +15,14 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.topbraid.jenax.util.JenaUtil;
 import org.topbraid.shacl.util.ModelPrinter;
 
+import javax.annotation.PreDestroy;
+
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.example.ModelUtils.RESOURCE_FOLDER;
 
@@ -23,6 +30,11 @@ import static org.example.ModelUtils.RESOURCE_FOLDER;
 @Controller
 public class MainController {
 
+    /**
+     * the number of subrequests per batch of a Core check of the REST API
+     */
+    static final int API_BATCH_SIZE = 1000;
+
     org.apache.jena.rdf.model.Model unionModel;
     Map<String, PolicyModel> policies;
     Map<String, RequestModel> savedRequests;
@@ -32,19 +44,35 @@ public class MainController {
     String attributeGT, actionsGT, dataGT, purposesGT, legalBasesGT, measuresGT, controllersGT, processorsGT,
             dataSubjectsGT, responsiblePartiesGT, sendersGT, recipientsGT;
     Map<String, String> individToClassVocab;
+    ExecutorService executor;
+    PolicyRegistry policyRegistry;
+    SAVENormalizer normalizer;
+    ResultCache resultCache;
+    SAVEMetrics metrics;
 
 
-    public MainController(){
+    public MainController(MeterRegistry meterRegistry){
         requestsFile = "testIMDBRequests.ttl";
         shaclToSavePolicyFiles = new HashMap<>();
         shaclToSavePolicyFiles.put("IMDBPolicy.shapes.sparql.ttl", "save.imdb.policy.ttl");
         shaclToSavePolicyFiles.put("IMDBPolicy.shapes.core.ttl", "save.imdb.policy.ttl");
         shaclToSavePolicyFiles.put("IMDBPolicyPreconflictPermissions.shapes.sparql.ttl", "save.imdb.policy.ttl");
         shaclToSavePolicyFiles.put("save.shapes.ttl", "save.ontology.ttl");
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        metrics = new SAVEMetrics(meterRegistry);
         unionModel = ModelUtils.loadFullSAVEModel();
         vocab = new SAVEVocabulary(unionModel);
         policies = getSavedSHACLPolicies();
         savedRequests = getSavedRequests(requestsFile);
+        // nothing changes the shared model after the startup, every request works on its own overlay
+        unionModel = ModelUtils.createReadOnlyModel(unionModel);
+        normalizer = new SAVENormalizer(unionModel);
+        policyRegistry = new PolicyRegistry(unionModel, ModelUtils.loadSAVEModel(), shaclToSavePolicyFiles, 16, metrics);
+        for (String policyName : policies.keySet()) {
+            policyRegistry.get(policyName);
+        }
+        resultCache = new ResultCache(256, Duration.ofMinutes(30));
+        resultCache.bindTo(meterRegistry);
 
 //        individToClassVocab = SPARQLUtils.initIndividToClassVocab(unionModel, Arrays.asList("save", "save-ex"));
 //        attributeGT = getAttributeTreeGT();
@@ -61,6 +89,10 @@ public class MainController {
 
     }
 
+    @PreDestroy
+    public void shutdown(){
+        executor.shutdown();
+    }
 
     private String getAttributeTreeGT() {
         GenericTree tree = new GenericTree();
@@ -126,6 +158,17 @@ public class MainController {
         model.addAttribute("recipientsGT", recipientsGT);
     }
 
+    @RequestMapping(value = "/compliance/reload", method = RequestMethod.POST)
+    public String reloadPolicies(@RequestParam(required = false) List<String> activePolicies){
+        // the policies are compiled again on the next check
+        if (activePolicies == null) {
+            policyRegistry.invalidateAll();
+        } else {
+            activePolicies.forEach(policyRegistry::invalidate);
+        }
+        return "redirect:/compliance";
+    }
+
     @RequestMapping(value = "/compliance", method = RequestMethod.POST)
     public String checkComplianceOnSavedRequests(@RequestParam(required = false) List<String> activeRequests,
                                                  @RequestParam(required = false) List<String> activePolicies,
@@ -141,8 +184,6 @@ public class MainController {
                                                  Model model){
         Instant start = Instant.now();
         List<ResultModel> results;
-        System.out.println(activeRequests);
-        System.out.println(activePolicies);
 
         for (PolicyModel policyModel : policies.values()) {
             policyModel.setActive(activePolicies.contains(policyModel.policyId));
@@ -174,9 +215,8 @@ public class MainController {
 //        }
         model.addAttribute("results", results);
         addTreesToModel(model);
-        Instant finish = Instant.now();
-        long timeElapsed = Duration.between(start, finish).toMillis();
-        System.out.println("Time took to run the whole test: " + timeElapsed);
+        metrics.record(SAVEMetrics.COMPLIANCE_CHECK, SAVEMetrics.NONE, SAVEMetrics.NONE,
+                Duration.between(start, Instant.now()).toNanos());
         return "compliance";
     }
 
@@ -234,66 +274,99 @@ public class MainController {
         //        SPARQLUtils.getRequestsByName(activeRequests, unionModel);
 //        SAVENormalizer normalizer = new SAVENormalizer(unionModel);
 
-        List<SHACLComplianceResult> results = new ArrayList<>();
         List<ResultModel> resultModels = new ArrayList<>();
         for(String policyName: activePolicies){
             PolicyModel policyModel = policies.get(policyName);
-            String savePolicyName = shaclToSavePolicyFiles.get(policyName);
-            org.apache.jena.rdf.model.Model policyOriginalModel = JenaUtil.createMemoryModel();
-            policyOriginalModel.read(ModelUtils.class.getResourceAsStream(RESOURCE_FOLDER + savePolicyName), "urn:dummy",
-                    FileUtils.langTurtle);
-            unionModel.add(policyOriginalModel);
-            org.apache.jena.rdf.model.Model policyShapeModel = JenaUtil.createMemoryModel();
-            policyShapeModel.read(ModelUtils.class.getResourceAsStream(RESOURCE_FOLDER + policyName), "urn:dummy",
-                    FileUtils.langTurtle);
-            unionModel.add(policyShapeModel);
-            SHACLInferenceRunner runner = new SHACLInferenceRunner(unionModel, ModelUtils.loadSAVEModel(), policyShapeModel);
-            for(SAVERuleNormalized requestNormalized: requests){
-//                SAVERuleNormalized requestNormalized = normalizer.normalizeSAVERule(request, false, false);
+            PolicyRegistry.RegisteredPolicy policy = policyRegistry.get(policyName);
+            // the cached results are used as they are, only the other requests are checked
+            ResultModel[] policyResultModels = new ResultModel[requests.size()];
+            List<String> keys = new ArrayList<>();
+            List<SAVERuleNormalized> uncachedRequests = new ArrayList<>();
+            List<Integer> uncachedIndexes = new ArrayList<>();
+            for (int i = 0; i < requests.size(); i++) {
+                String key = ResultCache.getKey(policyName, policy.getVersion(), requests.get(i));
+                keys.add(key);
+                ResultModel cached = resultCache.getIfPresent(key);
+                if (cached != null) {
+                    policyResultModels[i] = ResultCache.copyForRequest(cached, getRequestModel(requests.get(i)));
+                } else {
+                    uncachedRequests.add(requests.get(i));
+                    uncachedIndexes.add(i);
+                }
+            }
+            List<SHACLComplianceResult> policyResults;
+            try {
+                // Core needs the subrequests (verbose) for the explanations
+                policyResults = uncachedRequests.isEmpty() ? Collections.emptyList() :
+                        policy.getRunner().checkNormalizedSAVERulesParallel(uncachedRequests, policyName.contains("sparql"),
+                        true, SHACLComplianceResult.Mode.DEMO_APP, executor, !policyName.contains("sparql"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("Compliance check against %s was interrupted", policyName), e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(String.format("Compliance check against %s failed: %s", policyName,
+                        e.getMessage()), e.getCause());
+            }
+            for(int i = 0; i < uncachedRequests.size(); i++){
+                SHACLComplianceResult result = policyResults.get(i);
                 try {
-                    SHACLComplianceResult result;
-                    if (policyName.contains("sparql")) {
-                        result = runner.checkNormalizedSAVERuleSPARQL(requestNormalized,
-                                SHACLComplianceResult.Mode.DEMO_APP, false);
-                    } else {
-                        result = runner.checkNormalizedSAVERuleCore(requestNormalized,
-                                true, SHACLComplianceResult.Mode.DEMO_APP, true);
-                    }
-                    results.add(result);
-                    ResultModel resultModel = readResultFromRaw(requestNormalized, policyModel, result, policyName.contains("sparql"));
-                    resultModels.add(resultModel);
+                    ResultModel resultModel = readResultFromRaw(uncachedRequests.get(i), policyModel, result, policyName.contains("sparql"),
+                            policy.getUnionModel());
+                    resultCache.put(keys.get(uncachedIndexes.get(i)), resultModel);
+                    policyResultModels[uncachedIndexes.get(i)] = resultModel;
                 } catch (Exception e){
-                    System.out.println("Error appeared during compliance check of request " + requestNormalized.getName());
+                    System.out.println("Error appeared during compliance check of request " + uncachedRequests.get(i).getName());
                     e.printStackTrace();
                 }
             }
-            unionModel.remove(policyOriginalModel);
-            unionModel.remove(policyShapeModel);
+            for (ResultModel resultModel : policyResultModels) {
+                if (resultModel != null) {
+                    resultModels.add(resultModel);
+                }
+            }
         }
-//        SHACLComplianceResult finalResult = SHACLComplianceResult.createTotalResultFromList(results, requests.size(),
-//                unionModel, SHACLComplianceResult.Mode.DEMO_APP);
         return resultModels;
     }
 
-    private ResultModel readResultFromRaw(SAVERule request, PolicyModel policy, SHACLComplianceResult result, boolean SPARQL) {
+    /**
+     * Checks one request against one policy, for the REST API (the requests are checked concurrently).
+     * There is no limit on the number of subrequests of the Core procedure
+     * @param request the request (normalized)
+     * @param policyName the name of the shapes file of the policy
+     * @return the answer
+     * @throws Exception if the request could not be checked
+     */
+    ResultModel checkComplianceOnRequest(SAVERuleNormalized request, String policyName) throws Exception {
+        PolicyRegistry.RegisteredPolicy policy = policyRegistry.get(policyName);
+        boolean SPARQL = policyName.contains("sparql");
+        // an identical request (whatever its name) is checked once per compiled policy
+        ResultModel resultModel = resultCache.get(ResultCache.getKey(policyName, policy.getVersion(), request), () -> {
+            SHACLInferenceRunner runner = new SHACLInferenceRunner(policy.getRunner());
+            SHACLComplianceResult result = SPARQL ?
+                    runner.checkNormalizedSAVERuleSPARQL(request, SHACLComplianceResult.Mode.DEMO_APP, false) :
+                    // all the subrequests, batch by batch on the calling thread (the requests are checked concurrently),
+                    // the subrequests are kept once per batch for the explanations
+                    runner.checkNormalizedSAVERuleCoreParallel(request, API_BATCH_SIZE, SHACLComplianceResult.Mode.DEMO_APP,
+                            MoreExecutors.newDirectExecutorService(), true);
+            return readResultFromRaw(request, policies.get(policyName), result, SPARQL, policy.getUnionModel());
+        });
+        return ResultCache.copyForRequest(resultModel, getRequestModel(request));
+    }
+
+    private ResultModel readResultFromRaw(SAVERule request, PolicyModel policy, SHACLComplianceResult result, boolean SPARQL,
+                                          org.apache.jena.rdf.model.Model unionModel) {
+        long start = System.nanoTime();
         // result is given per request, but there may be multiple rules/policies
         ResultModel resultModel = new ResultModel();
-        if(savedRequests.containsKey(request.getName())) {
-            resultModel.setRequest(savedRequests.get(request.getName()));
-        }else {
-            //it's the new request
-            RequestModel requestModel = new RequestModel(request.getName(), request.getName().split(":")[1], request.getType(),
-                    false, request);
-            resultModel.setRequest(requestModel);
-        }
+        resultModel.setRequest(getRequestModel(request));
         resultModel.setRawResult(result);
         resultModel.setPolicy(policy);
         if(SPARQL){
-            Map<String, SAVERule> conformsToRule = SPARQLUtils.getConformsTo(request, JenaUtil.createMemoryModel().add(unionModel).add(result.getInfModel()));
+            Map<String, SAVERule> conformsToRule = SPARQLUtils.getConformsTo(request, createRequestView(unionModel, result.getInfModel()));
             for (String rule: conformsToRule.keySet()){
                 resultModel.getConformsTo().add(conformsToRule.get(rule));
             }
-            Map<String, SAVERule> prohibitedByRule = SPARQLUtils.getProhibitedBy(request, JenaUtil.createMemoryModel().add(unionModel).add(result.getInfModel()));
+            Map<String, SAVERule> prohibitedByRule = SPARQLUtils.getProhibitedBy(request, createRequestView(unionModel, result.getInfModel()));
             for (String rule: prohibitedByRule.keySet()) {
                 resultModel.getProhibitedBy().add(prohibitedByRule.get(rule));
             }
@@ -302,13 +375,13 @@ public class MainController {
             resultModel.setFinalResultProhibited(answerTuple.get(1));
         } else {
             Map<String, SAVERule> conformsToRule = SPARQLUtils.getSubrequestsPermitted(
-                    JenaUtil.createMemoryModel().add(unionModel).add(result.getInfModel()).add(result.getSubrequestsModel()),
+                    createRequestView(unionModel, result.getInfModel(), result.getSubrequestsModel()),
                     request.getName());
             for (String rule: conformsToRule.keySet()){
                 resultModel.getConformsTo().add(conformsToRule.get(rule));
             }
             Map<String, SAVERule> prohibitedByRule = SPARQLUtils.getSubrequestsProhibited(
-                    JenaUtil.createMemoryModel().add(unionModel).add(result.getInfModel()).add(result.getSubrequestsModel()),
+                    createRequestView(unionModel, result.getInfModel(), result.getSubrequestsModel()),
                     request.getName());
             for (String rule: prohibitedByRule.keySet()) {
                 resultModel.getProhibitedBy().add(prohibitedByRule.get(rule));
@@ -317,9 +390,36 @@ public class MainController {
             resultModel.setFinalResultPermitted(answerTuple.get(0));
             resultModel.setFinalResultProhibited(answerTuple.get(1));
         }
+        metrics.recordSince(SAVEMetrics.RESULT_EXTRACTION, policy.getPolicyId(), SPARQL ? SAVEMetrics.SPARQL : SAVEMetrics.CORE,
+                start);
         return resultModel;
     }
 
+    private RequestModel getRequestModel(SAVERule request) {
+        if(savedRequests.containsKey(request.getName())) {
+            return savedRequests.get(request.getName());
+        }
+        //it's the new request
+        return new RequestModel(request.getName(), request.getName().split(":")[1], request.getType(), false, request);
+    }
+
+    /**
+     * Creates the view of one HTTP request: the result triples are copied into a small model layered over
+     * the shared model, which is not copied nor changed
+     * @param unionModel the shared model (with the policy)
+     * @param models the models of the request (results, subrequests)
+     * @return the view for the queries
+     */
+    private org.apache.jena.rdf.model.Model createRequestView(org.apache.jena.rdf.model.Model unionModel,
+                                                              org.apache.jena.rdf.model.Model... models) {
+        org.apache.jena.rdf.model.Model requestModel = JenaUtil.createMemoryModel();
+        requestModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        for (org.apache.jena.rdf.model.Model model : models) {
+            requestModel.add(model);
+        }
+        return ModelUtils.createOverlayModel(requestModel, unionModel);
+    }
+
     private Map<String, RequestModel> getSavedRequests(String filename) {
         org.apache.jena.rdf.model.Model requestsModel = JenaUtil.createMemoryModel();
         requestsModel.read(ModelUtils.class.getResourceAsStream(RESOURCE_FOLDER + filename), "urn:dummy",
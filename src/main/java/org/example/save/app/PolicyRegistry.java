@@ -0,0 +1,144 @@
+package org.example.save.app;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.jena.rdf.model.Model;
+import org.example.ModelUtils;
+import org.example.SAVEMetrics;
+import org.example.SAVEPolicy;
+import org.example.SHACLInferenceRunner;
+import org.example.SPARQLUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.topbraid.jenax.util.JenaUtil;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policies of the app, parsed and compiled once (at startup or on first use) and kept in an LRU cache,
+ * so checking a request never reads the policy files
+ */
+public class PolicyRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PolicyRegistry.class);
+
+    private final Model unionModel;
+    private final Model saveModel;
+    private final Map<String, String> shaclToSavePolicyFiles;
+    private final SAVEMetrics metrics;
+    private final LoadingCache<String, RegisteredPolicy> cache;
+
+    /**
+     * version of the last compiled policy, every compilation gets the next one
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * @param unionModel shared full model (SAVE, DPV, ORCP, etc.), only read
+     * @param saveModel SAVE ontology
+     * @param shaclToSavePolicyFiles the SAVE policy file for every shapes file
+     * @param maximumSize the maximal number of compiled policies kept, the least recently used are dropped
+     * @param metrics the stage timers of the application, also used by the runners of the policies
+     */
+    public PolicyRegistry(Model unionModel, Model saveModel, Map<String, String> shaclToSavePolicyFiles, long maximumSize,
+                          SAVEMetrics metrics) {
+        this.unionModel = unionModel;
+        this.saveModel = saveModel;
+        this.shaclToSavePolicyFiles = shaclToSavePolicyFiles;
+        this.metrics = metrics;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build(new CacheLoader<String, RegisteredPolicy>() {
+                    @Override
+                    public RegisteredPolicy load(String policyName) {
+                        return compile(policyName);
+                    }
+                });
+    }
+
+    private RegisteredPolicy compile(String policyName) {
+        long start = System.nanoTime();
+        Model policyModel = JenaUtil.createMemoryModel();
+        policyModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        policyModel.add(ModelUtils.loadModelFromResourceFile(shaclToSavePolicyFiles.get(policyName)));
+        Model shapesModel = ModelUtils.loadModelFromResourceFile(policyName);
+        policyModel.add(shapesModel);
+        // the policy is layered over the shared model, which stays the same for all policies
+        Model policyUnionModel = ModelUtils.createOverlayModel(policyModel, unionModel);
+        SHACLInferenceRunner runner = new SHACLInferenceRunner(policyUnionModel, saveModel, shapesModel);
+        runner.setMetrics(metrics, policyName);
+        // the requests are checked only against their candidate rules, if the shapes are the rules of the SAVE policy
+        boolean indexed = false;
+        for (SAVEPolicy policy : SPARQLUtils.extractPoliciesFromModel(policyUnionModel)) {
+            if (runner.indexRules(policy)) {
+                indexed = true;
+                break;
+            }
+        }
+        metrics.recordSince(SAVEMetrics.POLICY_LOADING, policyName, SAVEMetrics.getProcedure(policyName), start);
+        LOG.debug("Compiled policy {} (rules indexed: {})", policyName, indexed);
+        return new RegisteredPolicy(policyUnionModel, runner, versions.incrementAndGet());
+    }
+
+    /**
+     * @param policyName the name of the shapes file
+     * @return the compiled policy, parsed and compiled if it is not in the cache
+     */
+    public RegisteredPolicy get(String policyName) {
+        return cache.getUnchecked(policyName);
+    }
+
+    /**
+     * Drops the compiled policy, e.g. after the policy files changed, it is compiled again on the next use
+     * @param policyName the name of the shapes file
+     */
+    public void invalidate(String policyName) {
+        cache.invalidate(policyName);
+    }
+
+    /**
+     * Drops all the compiled policies
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * A policy ready for compliance checking
+     */
+    public static class RegisteredPolicy {
+        private final Model unionModel;
+        private final SHACLInferenceRunner runner;
+        private final long version;
+
+        RegisteredPolicy(Model unionModel, SHACLInferenceRunner runner, long version) {
+            this.unionModel = unionModel;
+            this.runner = runner;
+            this.version = version;
+        }
+
+        /**
+         * @return the shared model with the SAVE policy and its shapes, only to read
+         */
+        public Model getUnionModel() {
+            return unionModel;
+        }
+
+        /**
+         * @return the runner with the compiled shapes, used through the parallel API (each task has its own copy)
+         */
+        public SHACLInferenceRunner getRunner() {
+            return runner;
+        }
+
+        /**
+         * @return the version of the compilation, a policy compiled again (reloaded or dropped by the LRU)
+         * gets a new one, so the results of the old one are not used
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+}
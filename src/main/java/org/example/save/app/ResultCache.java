@@ -0,0 +1,149 @@
+package org.example.save.app;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.example.SAVERuleNormalized;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Compliance results of the app, kept per (policy version, canonical normalized request) with a maximal size
+ * and a time to live, so the same request (or an identical one with another name) sent again against the same
+ * compiled policy is neither materialized nor checked again. Only the answer and the conformsTo/prohibitedBy rules
+ * are kept, not the raw result with its inferred and subrequests models. The hits, misses, evictions and size are
+ * exported as the cache metrics of Micrometer (bindTo)
+ */
+public class ResultCache implements MeterBinder {
+
+    /**
+     * cache tag of the cache metrics
+     */
+    public static final String CACHE_NAME = "save_results";
+
+    private final Cache<String, ResultModel> cache;
+
+    /**
+     * @param maximumSize the maximal number of results kept, the least recently used are dropped
+     * @param timeToLive the time a result is kept after it was computed
+     */
+    public ResultCache(long maximumSize, Duration timeToLive) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param policyName the name of the shapes file
+     * @param policyVersion the version of the compiled policy (RegisteredPolicy.getVersion)
+     * @param request the normalized request
+     * @return the key of the result: the policy, its version and the canonical request
+     */
+    public static String getKey(String policyName, long policyVersion, SAVERuleNormalized request) {
+        return policyName + "#" + policyVersion + "|" + getCanonicalRequest(request);
+    }
+
+    /**
+     * The canonical form of a normalized request, the same for the requests with the same type, the same values
+     * (and their classes) and the same normalized attribute values, whatever the name and the order
+     * @param request the normalized request
+     * @return the canonical form
+     */
+    public static String getCanonicalRequest(SAVERuleNormalized request) {
+        StringBuilder canonical = new StringBuilder(request.getType());
+        List<Map<String, String>> properties = Arrays.asList(request.getActions(), request.getData(),
+                request.getPurposes(), request.getLegalBases(), request.getMeasures(), request.getControllers(),
+                request.getProcessors(), request.getResponsibleParties(), request.getDataSubjects(),
+                request.getSenders(), request.getRecipients());
+        for (Map<String, String> property : properties) {
+            canonical.append('|').append(new TreeMap<>(property));
+        }
+        Map<String, List<String>> values = new TreeMap<>();
+        for (int i = 0; i < request.getAttributes().size(); i++) {
+            List<String> sorted = new ArrayList<>(request.getValues().get(i));
+            Collections.sort(sorted);
+            values.put(request.getAttributes().get(i), sorted);
+        }
+        return canonical.append('|').append(values).toString();
+    }
+
+    /**
+     * @param key the key from getKey
+     * @return the result, null if it is not cached (counted as a miss)
+     */
+    public ResultModel getIfPresent(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @param key the key from getKey
+     * @param result the result to keep, without its raw result
+     */
+    public void put(String key, ResultModel result) {
+        cache.put(key, toEntry(result));
+    }
+
+    /**
+     * Returns the cached result or checks the request, once for the concurrent identical requests
+     * @param key the key from getKey
+     * @param check checks the request
+     * @return the result, without its raw result
+     * @throws Exception the exception of the check
+     */
+    public ResultModel get(String key, Callable<ResultModel> check) throws Exception {
+        try {
+            return cache.get(key, () -> toEntry(check.call()));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Copies a cached result for a request, so the request of the answer is this one and not the cached one
+     * @param result the cached result
+     * @param request the request model of the answer
+     * @return the copy, without raw result
+     */
+    public static ResultModel copyForRequest(ResultModel result, RequestModel request) {
+        ResultModel copy = new ResultModel();
+        copy.setRequest(request);
+        copy.setPolicy(result.getPolicy());
+        copy.setFinalResultPermitted(result.getFinalResultPermitted());
+        copy.setFinalResultProhibited(result.getFinalResultProhibited());
+        copy.getConformsTo().addAll(result.getConformsTo());
+        copy.getProhibitedBy().addAll(result.getProhibitedBy());
+        return copy;
+    }
+
+    /**
+     * @param result the result read from the raw result
+     * @return the entry kept for it: the same answer and rules, the models of the raw result can be collected
+     */
+    private static ResultModel toEntry(ResultModel result) {
+        return result.getRawResult() == null ? result : copyForRequest(result, result.getRequest());
+    }
+
+    /**
+     * Drops all the results
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        GuavaCacheMetrics.monitor(registry, cache, CACHE_NAME);
+    }
+}
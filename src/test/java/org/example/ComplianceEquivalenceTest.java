@@ -0,0 +1,262 @@
+package org.example;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.topbraid.jenax.util.JenaUtil;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.example.SPARQLUtils.extractPoliciesFromModel;
+import static org.example.SPARQLUtils.extractRequestsFromModel;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the Core procedure, the SPARQL procedure and the native engine give the same answers
+ * (permitted/prohibited) and the same conformsTo/prohibitedBy rules, on the IMDB policy and on generated policies.
+ * The procedures checking only the candidate rules of the requests (SHACLInferenceRunner.indexRules) and the combined
+ * SPARQL translation give the same answers, and a translated policy edited rule by rule is the same as a fresh translation
+ */
+public class ComplianceEquivalenceTest {
+
+    private static final SHACLComplianceResult.Mode MODE = SHACLComplianceResult.Mode.IMDB_TEST_REQUESTS;
+
+    private static Model unionModel;
+    private static Model saveModel;
+
+    @BeforeAll
+    public static void loadModels() {
+        unionModel = ModelUtils.loadFullSAVEModel();
+        saveModel = ModelUtils.loadSAVEModel();
+    }
+
+    @Test
+    public void imdbPolicyTestRequests() throws Exception {
+        Model policyModel = ModelUtils.loadModelFromResourceFile("save.imdb.policy.ttl");
+        Model policyUnionModel = JenaUtil.createMemoryModel().add(unionModel).add(policyModel);
+        policyUnionModel.setNsPrefixes(unionModel.getNsPrefixMap());
+        Model shapesCore = ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.core.ttl");
+        Model requestsModel = ModelUtils.loadModelFromResourceFile("testIMDBRequests.ttl");
+        // the request classes are declared by the shapes
+        List<SAVERule> requests = extractRequestsFromModel(JenaUtil.createMemoryModel().add(policyUnionModel)
+                .add(shapesCore).add(requestsModel));
+        assertFalse(requests.isEmpty());
+        SAVENormalizer normalizer = new SAVENormalizer(policyUnionModel);
+        List<SAVERuleNormalized> requestsNormalized = new ArrayList<>();
+        for (SAVERule request : requests) {
+            requestsNormalized.add(normalizer.normalizeSAVERule(request, false, true));
+        }
+        assertEquivalent(policyUnionModel, extractPoliciesFromModel(policyUnionModel).get(0), shapesCore,
+                ModelUtils.loadModelFromResourceFile("IMDBPolicy.shapes.sparql.ttl"), requestsNormalized);
+    }
+
+    @Test
+    public void generatedPolicies() throws Exception {
+        SAVEVocabulary vocab = new SAVEVocabulary(unionModel);
+        Set<String> attributes = new HashSet<>(Arrays.asList(vocab.dataPropertyPrefixedName,
+                vocab.actionPropertyPrefixedName, vocab.purposePropertyPrefixedName));
+        for (int seed : new int[]{1, 5}) {
+            for (int policySize : new int[]{1, 10}) {
+                Model policyUnionModel = JenaUtil.createMemoryModel().add(unionModel);
+                policyUnionModel.setNsPrefixes(unionModel.getNsPrefixMap());
+                SAVERuleGenerator generator = new SAVERuleGenerator(policyUnionModel, seed);
+                String policyName = "save-ex:test_policy_" + seed + "_" + policySize;
+                SAVEPolicy policy = generator.generateRandomPolicy(policyName, policySize, false, attributes);
+                SHACLPolicyTranslator translatorCore = new SHACLPolicyTranslator(policyUnionModel, policy);
+                translatorCore.translateSAVEPolicyToSHACL();
+                SHACLPolicyTranslator translatorSPARQL = new SHACLPolicyTranslator(policyUnionModel, policy);
+                translatorSPARQL.translateSAVEPolicyToSHACLSPARQL();
+                String requestType = String.format("save-ex:Request%s", policyName.split(":")[1]);
+                SAVENormalizer normalizer = new SAVENormalizer(policyUnionModel);
+                List<SAVERuleNormalized> requests = new ArrayList<>();
+                // random requests rarely match a rule, so every rule is also sent as a request
+                List<SAVERule> rules = new ArrayList<>(policy.getPermissions());
+                rules.addAll(policy.getProhibitions());
+                for (int i = 0; i < rules.size(); i++) {
+                    SAVERule request = new SAVERule(rules.get(i));
+                    request.setName("save-ex:test_rule_" + i + "_" + policySize + "_" + seed);
+                    request.setType(requestType);
+                    requests.add(normalizer.normalizeSAVERule(request, false, true));
+                }
+                for (int i = 1; i <= 5; i++) {
+                    SAVERule request = generator.generateRandomRule("save-ex:test_" + i + "_" + policySize + "_" + seed,
+                            requestType, false, attributes);
+                    requests.add(normalizer.normalizeSAVERule(request, false, true));
+                }
+                assertEquivalent(policyUnionModel, policy, translatorCore.getInfModel(), translatorSPARQL.getInfModel(),
+                        requests);
+            }
+        }
+    }
+
+    @Test
+    public void editedPolicies() {
+        SAVEVocabulary vocab = new SAVEVocabulary(unionModel);
+        Set<String> attributes = new HashSet<>(Arrays.asList(vocab.dataPropertyPrefixedName,
+                vocab.actionPropertyPrefixedName, vocab.purposePropertyPrefixedName));
+        Map<String, Consumer<SHACLPolicyTranslator>> translations = new LinkedHashMap<>();
+        translations.put("Core", SHACLPolicyTranslator::translateSAVEPolicyToSHACL);
+        translations.put("SPARQL", SHACLPolicyTranslator::translateSAVEPolicyToSHACLSPARQL);
+        translations.put("combined SPARQL", SHACLPolicyTranslator::translateSAVEPolicyToSHACLSPARQLCombined);
+        for (int seed : new int[]{1, 5}) {
+            SAVERuleGenerator generator = new SAVERuleGenerator(unionModel, seed);
+            SAVEPolicy policy = generator.generateRandomPolicy("save-ex:edited_policy_" + seed, 10, false, attributes);
+            SAVERule permission = policy.getPermissions().get(0);
+            SAVERule prohibition = policy.getProhibitions().get(0);
+            for (Map.Entry<String, Consumer<SHACLPolicyTranslator>> translation : translations.entrySet()) {
+                SHACLPolicyTranslator translator = new SHACLPolicyTranslator(unionModel, copyPolicy(policy));
+                translation.getValue().accept(translator);
+                translator.addRule(generator.generateRandomRule("save-ex:edited_rule_" + seed, permission.getType(),
+                        false, attributes));
+                // the updated permission becomes a prohibition
+                translator.updateRule(generator.generateRandomRule(permission.getName(), prohibition.getType(),
+                        false, attributes));
+                assertTrue(translator.removeRule(prohibition.getName()), "removed " + prohibition.getName());
+                assertFalse(translator.removeRule(prohibition.getName()), "removed twice " + prohibition.getName());
+
+                SHACLPolicyTranslator fresh = new SHACLPolicyTranslator(unionModel,
+                        copyPolicy(translator.getSavePolicy()));
+                translation.getValue().accept(fresh);
+                assertTrue(fresh.getInfModel().isIsomorphicWith(translator.getInfModel()),
+                        "seed " + seed + ": edited " + translation.getKey() + " translation");
+            }
+        }
+    }
+
+    private static SAVEPolicy copyPolicy(SAVEPolicy policy) {
+        SAVEPolicy copy = new SAVEPolicy(policy.getName());
+        for (List<SAVERule> rules : Arrays.asList(policy.getPermissions(), policy.getProhibitions(),
+                policy.getObligations(), policy.getDispensations())) {
+            for (SAVERule rule : rules) {
+                copy.addRule(new SAVERule(rule));
+            }
+        }
+        return copy;
+    }
+
+    private static void assertEquivalent(Model policyUnionModel, SAVEPolicy policy, Model shapesCore, Model shapesSPARQL,
+                                         List<SAVERuleNormalized> requests) throws Exception {
+        Model coreUnionModel = JenaUtil.createMemoryModel().add(policyUnionModel).add(shapesCore);
+        coreUnionModel.setNsPrefixes(policyUnionModel.getNsPrefixMap());
+        Model sparqlUnionModel = JenaUtil.createMemoryModel().add(policyUnionModel).add(shapesSPARQL);
+        sparqlUnionModel.setNsPrefixes(policyUnionModel.getNsPrefixMap());
+        SHACLInferenceRunner runnerCore = new SHACLInferenceRunner(coreUnionModel, saveModel, shapesCore);
+        SHACLInferenceRunner runnerSPARQL = new SHACLInferenceRunner(sparqlUnionModel, saveModel, shapesSPARQL);
+        SHACLPolicyTranslator translatorCombined = new SHACLPolicyTranslator(policyUnionModel, policy);
+        translatorCombined.translateSAVEPolicyToSHACLSPARQLCombined();
+        Model combinedUnionModel = JenaUtil.createMemoryModel().add(policyUnionModel)
+                .add(translatorCombined.getInfModel());
+        combinedUnionModel.setNsPrefixes(policyUnionModel.getNsPrefixMap());
+        SHACLInferenceRunner runnerCombined = new SHACLInferenceRunner(combinedUnionModel, saveModel,
+                translatorCombined.getInfModel());
+        SAVEComplianceEngine engine = new SAVEComplianceEngine(policy, policyUnionModel, saveModel);
+        // the same policies, checking the requests only against their candidate rules
+        SHACLInferenceRunner filteredCore = new SHACLInferenceRunner(runnerCore);
+        assertTrue(filteredCore.indexRules(policy), "index of the Core rules");
+        SHACLInferenceRunner filteredSPARQL = new SHACLInferenceRunner(runnerSPARQL);
+        assertTrue(filteredSPARQL.indexRules(policy), "index of the SPARQL rules");
+        for (SAVERuleNormalized request : requests) {
+            SHACLComplianceResult coreResult = new SHACLInferenceRunner(runnerCore)
+                    .checkNormalizedSAVERuleCore(request, false, MODE, true);
+            SHACLComplianceResult sparqlResult = new SHACLInferenceRunner(runnerSPARQL)
+                    .checkNormalizedSAVERuleSPARQL(request, MODE, true);
+            SHACLComplianceResult nativeResult = engine.checkNormalizedSAVERule(request, MODE, true);
+            Answer core = Answer.fromCore(coreResult, request, coreUnionModel);
+            Answer sparql = Answer.fromSPARQL(sparqlResult, request, sparqlUnionModel);
+            Answer nativeAnswer = Answer.fromCore(nativeResult, request, policyUnionModel);
+            assertEquals(2, core.finalResult.size(), request.getName() + ": answer of the Core procedure");
+            assertEquals(core, nativeAnswer, request.getName() + ": native engine");
+            assertEquals(core, sparql, request.getName() + ": SPARQL procedure");
+            assertEquals(core, Answer.fromCore(new SHACLInferenceRunner(filteredCore)
+                            .checkNormalizedSAVERuleCore(request, false, MODE, true), request, coreUnionModel),
+                    request.getName() + ": Core procedure on the candidate rules");
+            assertEquals(sparql, Answer.fromSPARQL(new SHACLInferenceRunner(filteredSPARQL)
+                            .checkNormalizedSAVERuleSPARQL(request, MODE, true), request, sparqlUnionModel),
+                    request.getName() + ": SPARQL procedure on the candidate rules");
+            assertEquals(sparql, Answer.fromSPARQL(new SHACLInferenceRunner(runnerCombined)
+                            .checkNormalizedSAVERuleSPARQL(request, MODE, true), request, combinedUnionModel),
+                    request.getName() + ": combined SPARQL translation");
+            for (SHACLComplianceResult result : Arrays.asList(coreResult, sparqlResult, nativeResult)) {
+                assertEquals(Collections.singletonList(request.getName()), result.getAnsweredRequests(),
+                        request.getName() + ": recorded answer");
+                assertEquals(core.finalResult, Arrays.asList(result.getAnswerPermitted(0).getLabel(),
+                        result.getAnswerProhibited(0).getLabel()), request.getName() + ": recorded answer");
+            }
+        }
+    }
+
+    /**
+     * The answer of one request and the rules it conforms to or is prohibited by
+     */
+    private static final class Answer {
+        private final List<String> finalResult;
+        private final Set<String> conformsTo;
+        private final Set<String> prohibitedBy;
+
+        private Answer(List<String> finalResult, Set<String> conformsTo, Set<String> prohibitedBy) {
+            this.finalResult = finalResult;
+            this.conformsTo = conformsTo;
+            this.prohibitedBy = prohibitedBy;
+        }
+
+        /**
+         * Reads the answer of the Core procedure or of the native engine: the rules are the ones of the subrequests
+         * with the same answer (the native engine does not materialize the attributes of the subrequests)
+         */
+        static Answer fromCore(SHACLComplianceResult result, SAVERule request, Model unionModel) {
+            Model view = ModelUtils.createOverlayModel(result.getInfModel(), unionModel);
+            return new Answer(SPARQLUtils.getFinalResultCore(view, request.getName()),
+                    getSubrequestRules(view, request.getName(), "save:conformsTo", "permitted"),
+                    getSubrequestRules(view, request.getName(), "save:prohibitedBy", "prohibited"));
+        }
+
+        private static Set<String> getSubrequestRules(Model model, String requestName, String property, String answer) {
+            String subrequestPrefix = ModelUtils.replacePrefixWithURI(requestName, model) + "_";
+            Property answerProperty = model.createProperty(ModelUtils.replacePrefixWithURI("save:answer", model));
+            Set<String> rules = new TreeSet<>();
+            model.listStatements(null, model.createProperty(ModelUtils.replacePrefixWithURI(property, model)), (RDFNode) null)
+                    .forEachRemaining(statement -> {
+                        Resource subrequest = statement.getSubject();
+                        if (subrequest.getURI().startsWith(subrequestPrefix)
+                                && subrequest.hasProperty(answerProperty, answer)) {
+                            rules.add(SPARQLUtils.getPrefixedLabel(statement.getResource(), model));
+                        }
+                    });
+            return rules;
+        }
+
+        static Answer fromSPARQL(SHACLComplianceResult result, SAVERule request, Model unionModel) {
+            Model view = ModelUtils.createOverlayModel(JenaUtil.createMemoryModel().add(result.getInfModel()),
+                    unionModel);
+            return new Answer(SPARQLUtils.getFinalResult(view),
+                    new TreeSet<>(SPARQLUtils.getConformsTo(request, view).keySet()),
+                    new TreeSet<>(SPARQLUtils.getProhibitedBy(request, view).keySet()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Answer)) {
+                return false;
+            }
+            Answer answer = (Answer) o;
+            return finalResult.equals(answer.finalResult) && conformsTo.equals(answer.conformsTo)
+                    && prohibitedBy.equals(answer.prohibitedBy);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(finalResult, conformsTo, prohibitedBy);
+        }
+
+        @Override
+        public String toString() {
+            return finalResult + " conformsTo " + conformsTo + " prohibitedBy " + prohibitedBy;
+        }
+    }
+}
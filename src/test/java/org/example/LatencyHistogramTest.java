@@ -0,0 +1,91 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the percentiles, the merge and the max of the latency histogram on known values
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesOfSmallValues() {
+        // the values below the number of sub-buckets are kept exactly
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 100; value >= 1; value--) {
+            histogram.recordValue(value);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(1, histogram.getValueAtPercentile(1));
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(90, histogram.getValueAtPercentile(90));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(99.9));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 ms to 1000 ms
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordMillis(millis);
+        }
+        for (double percentile : LatencyHistogram.PERCENTILES) {
+            // the value of rank ceil(p / 100 * n)
+            long expected = (long) Math.ceil(percentile / 100 * 1000) * 1_000_000L;
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(value >= expected && value <= expected * 1.01,
+                    "p" + percentile + ": " + value + " instead of " + expected);
+        }
+        // the max is exact, not the highest equivalent value of its bucket
+        assertEquals(1_000_000_000L, histogram.getMax());
+        assertEquals(1_000_000_000L, histogram.getValueAtPercentile(100));
+        assertEquals(1_000_000L, histogram.getMin());
+    }
+
+    @Test
+    public void merge() {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram low = new LatencyHistogram();
+        LatencyHistogram high = new LatencyHistogram();
+        for (long value = 1_000; value <= 2_000_000; value += 1_000) {
+            all.recordValue(value);
+            (value <= 1_000_000 ? low : high).recordValue(value);
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(high);
+        merged.add(new LatencyHistogram());
+        merged.add(low);
+        assertEquals(all.getSummary(), merged.getSummary());
+        assertEquals(2000, merged.getTotalCount());
+        assertEquals(1_000, merged.getMin());
+        assertEquals(2_000_000, merged.getMax());
+        assertEquals(all.getMean(), merged.getMean(), 1e-6);
+        assertEquals(all.getValueAtPercentile(50), merged.getValueAtPercentile(50));
+        assertTrue(merged.getValueAtPercentile(50) >= 1_000_000 && merged.getValueAtPercentile(50) <= 1_010_000);
+    }
+
+    @Test
+    public void maxAndBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.recordValue(-5);
+        assertEquals(0, histogram.getMin());
+        histogram.recordValue(LatencyHistogram.HIGHEST_TRACKABLE_VALUE * 2);
+        // bigger values are counted as the highest trackable one
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getValueAtPercentile(100));
+        histogram.recordValue(12_345);
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMax());
+        assertEquals(3, histogram.getTotalCount());
+    }
+}
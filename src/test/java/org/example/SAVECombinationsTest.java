@@ -0,0 +1,160 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the decoded combinations (get, range, split) against the combinations enumerated with nested loops
+ */
+public class SAVECombinationsTest {
+
+    private static final List<List<String>> VALUES = Arrays.asList(
+            Arrays.asList("a1", "a2", "a3"),
+            Collections.singletonList("b1"),
+            Arrays.asList("c1", "c2"),
+            Arrays.asList("d1", "d2", "d3", "d4"));
+
+    @Test
+    public void getMatchesNestedLoops() {
+        SAVECombinations combinations = new SAVECombinations(VALUES);
+        List<List<String>> expected = enumerate(VALUES);
+        assertEquals(24, combinations.count());
+        assertEquals(expected.size(), combinations.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), combinations.get(i), "combination " + i);
+        }
+        assertEquals(expected, new ArrayList<>(combinations));
+        assertThrows(IndexOutOfBoundsException.class, () -> combinations.get(expected.size()));
+    }
+
+    @Test
+    public void rangeMatchesNestedLoops() {
+        SAVECombinations combinations = new SAVECombinations(VALUES);
+        List<List<String>> expected = enumerate(VALUES);
+        for (int from = 0; from <= expected.size(); from++) {
+            for (int to = from; to <= expected.size(); to++) {
+                SAVECombinations range = combinations.range(from, to);
+                assertEquals(from, range.getFrom());
+                assertEquals(to - from, range.count());
+                assertEquals(expected.subList(from, to), new ArrayList<>(range), "range " + from + "-" + to);
+                for (int i = 0; i < range.size(); i++) {
+                    assertEquals(expected.get(from + i), range.get(i), "range " + from + "-" + to + ", combination " + i);
+                }
+            }
+        }
+        // a range of a range is still indexed in the full product
+        SAVECombinations nested = combinations.range(5, 20).range(3, 10);
+        assertEquals(8, nested.getFrom());
+        assertEquals(expected.subList(8, 15), new ArrayList<>(nested));
+        assertThrows(IndexOutOfBoundsException.class, () -> combinations.range(3, 25));
+        assertThrows(IndexOutOfBoundsException.class, () -> combinations.range(5, 4));
+    }
+
+    @Test
+    public void splitMatchesNestedLoops() {
+        SAVECombinations combinations = new SAVECombinations(VALUES);
+        List<List<String>> expected = enumerate(VALUES);
+        for (int rangeSize = 1; rangeSize <= expected.size() + 1; rangeSize++) {
+            List<SAVECombinations> ranges = combinations.split(rangeSize);
+            assertEquals((expected.size() + rangeSize - 1) / rangeSize, ranges.size(), "ranges of " + rangeSize);
+            List<List<String>> joined = new ArrayList<>();
+            for (SAVECombinations range : ranges) {
+                assertTrue(range.count() > 0 && range.count() <= rangeSize, "range of " + rangeSize);
+                assertEquals(joined.size(), range.getFrom());
+                joined.addAll(range);
+            }
+            assertEquals(expected, joined, "ranges of " + rangeSize);
+        }
+    }
+
+    @Test
+    public void emptyDimensions() {
+        List<List<String>> values = Arrays.asList(Arrays.asList("a1", "a2"), Collections.emptyList(),
+                Collections.singletonList("c1"));
+        SAVECombinations combinations = new SAVECombinations(values);
+        assertEquals(enumerate(values), new ArrayList<>(combinations));
+        assertEquals(0, combinations.count());
+        assertEquals(0, combinations.size());
+        assertTrue(combinations.split(10).isEmpty());
+        assertEquals(0, combinations.range(0, 0).count());
+        assertThrows(IndexOutOfBoundsException.class, () -> combinations.get(0));
+
+        // no attributes: one empty combination, as with nested loops
+        SAVECombinations noAttributes = new SAVECombinations(Collections.emptyList());
+        assertEquals(1, noAttributes.count());
+        assertEquals(enumerate(Collections.emptyList()), new ArrayList<>(noAttributes));
+        assertEquals(Collections.emptyList(), noAttributes.get(0));
+    }
+
+    @Test
+    public void moreThanIntegerMaxValue() {
+        // 100^5 = 10^10 combinations
+        List<List<String>> values = new ArrayList<>();
+        for (int a = 0; a < 5; a++) {
+            List<String> attributeValues = new ArrayList<>();
+            for (int v = 0; v < 100; v++) {
+                attributeValues.add(a + "_" + v);
+            }
+            values.add(attributeValues);
+        }
+        SAVECombinations combinations = new SAVECombinations(values);
+        long count = 10_000_000_000L;
+        assertEquals(count, combinations.count());
+        // size() is clamped, count() is not
+        assertEquals(Integer.MAX_VALUE, combinations.size());
+        assertEquals(Arrays.asList("0_0", "1_0", "2_0", "3_0", "4_0"), combinations.get(0));
+        // 2^31 - 1 = 21 47 48 36 47 in base 100, the last index get() can reach is one less
+        assertEquals(Arrays.asList("0_21", "1_47", "2_48", "3_36", "4_46"), combinations.get(Integer.MAX_VALUE - 1));
+        assertEquals(Arrays.asList("0_21", "1_47", "2_48", "3_36", "4_47"), combinations.getCombination(Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("0_99", "1_99", "2_99", "3_99", "4_99"), combinations.getCombination(count - 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> combinations.getCombination(count));
+
+        // the end of the product is compared with nested loops over the last attributes
+        SAVECombinations tail = combinations.range(count - 1_000_000, count);
+        assertEquals(1_000_000, tail.size());
+        List<List<String>> expected = new ArrayList<>();
+        for (List<String> last : enumerate(values.subList(2, 5))) {
+            List<String> combination = new ArrayList<>(Arrays.asList("0_99", "1_99"));
+            combination.addAll(last);
+            expected.add(combination);
+        }
+        assertEquals(expected, new ArrayList<>(tail));
+        assertEquals(expected.get(123_456), tail.get(123_456));
+
+        List<SAVECombinations> ranges = combinations.split(count / 4);
+        assertEquals(4, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(i * count / 4, ranges.get(i).getFrom());
+            assertEquals(count / 4, ranges.get(i).count());
+            assertEquals(Integer.MAX_VALUE, ranges.get(i).size());
+        }
+        assertEquals(Arrays.asList("0_25", "1_0", "2_0", "3_0", "4_0"), ranges.get(1).get(0));
+    }
+
+    /**
+     * Enumerates the combinations with one nested loop per attribute, the last attribute changes fastest
+     */
+    private static List<List<String>> enumerate(List<List<String>> values) {
+        List<List<String>> combinations = new ArrayList<>();
+        enumerate(values, 0, new ArrayList<>(), combinations);
+        return combinations;
+    }
+
+    private static void enumerate(List<List<String>> values, int attribute, List<String> prefix,
+                                  List<List<String>> combinations) {
+        if (attribute == values.size()) {
+            combinations.add(new ArrayList<>(prefix));
+            return;
+        }
+        for (String value : values.get(attribute)) {
+            prefix.add(value);
+            enumerate(values, attribute + 1, prefix, combinations);
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.example.save.app;
+
+import org.example.SAVERule;
+import org.example.SAVERuleNormalized;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Checks the keys of the cached results: the same for the identical requests, whatever their names and the order
+ * of their attributes and values, different for another request or another compiled policy
+ */
+public class ResultCacheTest {
+
+    private static final String POLICY = "IMDBPolicy.shapes.core.ttl";
+
+    @Test
+    public void sameKeyForIdenticalRequests() {
+        SAVERuleNormalized request = createRequest("save-ex:Request_1",
+                Arrays.asList("save:data", "save:purpose"),
+                Arrays.asList(Arrays.asList("dpv:Age", "dpv:Name"), Arrays.asList("dpv:Marketing")));
+        SAVERuleNormalized renamed = createRequest("save-ex:Request_2",
+                Arrays.asList("save:data", "save:purpose"),
+                Arrays.asList(Arrays.asList("dpv:Age", "dpv:Name"), Arrays.asList("dpv:Marketing")));
+        SAVERuleNormalized reordered = createRequest("save-ex:Request_3",
+                Arrays.asList("save:purpose", "save:data"),
+                Arrays.asList(Arrays.asList("dpv:Marketing"), Arrays.asList("dpv:Name", "dpv:Age")));
+        String key = ResultCache.getKey(POLICY, 1, request);
+        assertEquals(key, ResultCache.getKey(POLICY, 1, renamed));
+        assertEquals(key, ResultCache.getKey(POLICY, 1, reordered));
+    }
+
+    @Test
+    public void differentKeys() {
+        SAVERuleNormalized request = createRequest("save-ex:Request_1",
+                Arrays.asList("save:data", "save:purpose"),
+                Arrays.asList(Arrays.asList("dpv:Age", "dpv:Name"), Arrays.asList("dpv:Marketing")));
+        SAVERuleNormalized otherValues = createRequest("save-ex:Request_1",
+                Arrays.asList("save:data", "save:purpose"),
+                Arrays.asList(Arrays.asList("dpv:Age"), Arrays.asList("dpv:Marketing")));
+        String key = ResultCache.getKey(POLICY, 1, request);
+        // a compiled policy gets a new version, the results of the old one are not used
+        assertNotEquals(key, ResultCache.getKey(POLICY, 2, request));
+        assertNotEquals(key, ResultCache.getKey("IMDBPolicy.shapes.sparql.ttl", 1, request));
+        assertNotEquals(key, ResultCache.getKey(POLICY, 1, otherValues));
+    }
+
+    /**
+     * Creates the normalized request with the given attribute values (the classes are also the values of the rule)
+     */
+    private static SAVERuleNormalized createRequest(String name, List<String> attributes, List<List<String>> values) {
+        SAVERule rule = new SAVERule(name, "save-ex:RequestIMDBPolicy");
+        for (int i = 0; i < attributes.size(); i++) {
+            for (String value : values.get(i)) {
+                rule.addProperty(attributes.get(i), value, value);
+            }
+        }
+        SAVERuleNormalized request = new SAVERuleNormalized(rule);
+        for (int i = 0; i < attributes.size(); i++) {
+            request.addAttribute(attributes.get(i));
+            request.addValues(values.get(i));
+        }
+        return request;
+    }
+}